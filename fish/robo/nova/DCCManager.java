@@ -21,10 +21,10 @@
 package fish.robo.nova;
 
 import fish.robo.nova.netlinks.DCCLinker;
+import fish.robo.nova.netlinks.DCCScheduler;
 import fish.robo.nova.guis.*;
 import javax.swing.*;
 import java.io.*;
-import java.util.Vector;
 
 /**
   * This class is used for DCC (Direct Client-to-Client) communication.
@@ -42,20 +42,20 @@ public class DCCManager
 	               nickname, // the nickname of the DCC partner
 	               ipAddress; // IP adress of the DCC partner
 
-	private long fileSize, // size (in bytes) of the file to be transferred
-	             position; // position in the file (in bytes) to resume transfer from; used for DCC Resume
+	private long fileSize; // size (in bytes) of the file to be transferred
+	private volatile long position; // position in the file (in bytes) to resume transfer from; used for DCC Resume
 
-	private int port; // the TCP port, dedicated for this transfer operation, at the other user's side
+	private volatile int port; // the TCP port, dedicated for this transfer operation, at the side that offered it
 
+	private volatile boolean resume; // indicates whether the constructed object is used for a RESUME session
 	private boolean chat, // indicates whether the constructed object is used for a CHAT session
-	                resume, // indicates whether the constructed object is used for a RESUME session
-	                locallyInitiated; // indicates whether DCC was initiated by the local user or the remote partner
-
-	public static Vector<DCCManager> SENDRegister = new Vector<DCCManager>(); // all outgoing DCC SEND managers are registered here
-	public static Vector<DCCManager> RESUMERegister = new Vector<DCCManager>(); // all outgoing DCC RESUME managers are registered here
+	                locallyInitiated, // indicates whether DCC was initiated by the local user or the remote partner
+	                turbo; // indicates whether the partner offered the file with DCC TSEND and expects no acknowledgments
 
 	private OneToOneChatFrame chatInterface;
 	private DCCProgressIndicator fileInterface;
+	/** the state of the file transfer in the DCCScheduler, null for chats */
+	private DCCTransfer transfer;
 
 
 	/**
@@ -77,7 +77,7 @@ public class DCCManager
 
 	/**
 	  * The constructor for locally initiated DCC SEND sessions.
-	  * Stored in the fish.robo.nova.NovaManager DCC register to be looked up when a DCC RESUME is received.
+	  * Stored in DCCRegistry.SENDS to be looked up when a DCC RESUME is received.
 	  * @param nickname The nickname of the DCC partner.
 	  * @param fileName The name of the file to be sent.
 	  * @param ipAdress The IP address of the DCC partner.
@@ -100,7 +100,7 @@ public class DCCManager
 
 	/**
 	  * The constructor for locally initiated DCC RESUME requests.
-	  * Stored in the fish.robo.nova.NovaManager DCC register to be looked up when a DCC ACCEPT is received
+	  * Stored in DCCRegistry.RESUMES to be looked up when a DCC ACCEPT is received
 	  * @param nickname The nickname of the DCC partner.
 	  * @param fileName The name of the file to be received.
 	  * @param ipAdress The IP address of the DCC partner.
@@ -125,6 +125,7 @@ public class DCCManager
 
 	/**
 	  * Called via fish.robo.nova.guis.NovaInterface to initiate a DCC CHAT or DCC SEND session.
+	  * A DCC SEND waits in the DCCScheduler until a worker is free.
 	  * @param name the nickname of the DCC partner
 	  * @param manager reference to the IRC managing object of type fish.robo.nova.NovaManager
 	  * @param isChat true if DCC CHAT, false if DCC SEND is initiated
@@ -145,9 +146,9 @@ public class DCCManager
 					absoluteFileName = chosenFile.getAbsolutePath();
 					fileName = chosenFile.getName();
 					fileSize = chosenFile.length();
-					SENDRegister.addElement(this);
+					// registered in DCCRegistry.SENDS by the DCCLinker, once the port of the offer is known
 				}
-			(linker = new DCCLinker(this, manager)).start();
+			DCCScheduler.getShared().submit(linker = new DCCLinker(this, manager), this, manager.getEnvironment());
 		}
 
 
@@ -171,10 +172,11 @@ public class DCCManager
 					//Ask user
 					new DCCPromptDialog(this, manager);
 				}
-			else if (allInOne.indexOf("SEND ") == 0) // partner wants to send us a file
+			else if (allInOne.indexOf("SEND ") == 0 || allInOne.indexOf("TSEND ") == 0) // partner wants to send us a file
 				{
 					locallyInitiated = false;
 					chat = false;
+					turbo = allInOne.startsWith("TSEND ");
 					fileName = IRCProtocolDroid.getSecond(allInOne); // extract file name
 					ipAddress = dcc2ip(IRCProtocolDroid.getNth(allInOne, 3)); // extract IP address
 					port = Integer.parseInt(IRCProtocolDroid.getNth(allInOne, 4)); // extract port number
@@ -185,63 +187,32 @@ public class DCCManager
 				{
 					locallyInitiated = true;
 					chat = false;
-					// look up DCC SEND registry to check if this response is valid
-					int k = SENDRegister.size();
-					if (k == 0) return; // erroneous DCC RESUME received
-					port = Integer.parseInt(IRCProtocolDroid.getSecond(allInOne)); // extract port number
-					boolean foundIt = false;
-					/*
-						According to mIRC, nickname and port number are sufficient for a unique identification.
-						I don't quite agree, but I will follow that standard here.
-					*/
-					int i;
-					for (i = 0; i < k; ++i)
-						{
-							if ((SENDRegister.elementAt(i)).getNickname().equals(nick))
-								if ((SENDRegister.elementAt(i)).getPort() == port)
-									{
-										foundIt = true;
-										break;
-									}
-						}
-					if (foundIt)
-						{
-							DCCManager tmp = SENDRegister.elementAt(i);
-							tmp.setResume(true);
-							manager.sendMessage("PRIVMSG " + nickname + " :\001DCC ACCEPT " + allInOne.substring(7) + '\001');
-							(new DCCLinker(tmp, manager)).start();
-						}
+					// "RESUME <file> <port> <position>"; the file name may contain spaces
+					long[] portAndPosition = parsePortAndPosition(allInOne);
+					if (portAndPosition == null) return; // erroneous DCC RESUME received
+					// look up the DCC SEND offers to check if this response is valid
+					DCCManager tmp = DCCRegistry.SENDS.lookup(nick, (int) portAndPosition[0]);
+					if (tmp == null || portAndPosition[1] < 0 || portAndPosition[1] > tmp.getFileSize()) return;
+					// the linker of the offer is still waiting for the connection and starts from this position
+					tmp.setPosition(portAndPosition[1]);
+					tmp.setResume(true);
+					manager.sendMessage("PRIVMSG " + nickname + " :\001DCC ACCEPT " + allInOne.substring(7) + '\001');
 				}
 			else if (allInOne.indexOf("ACCEPT ") == 0) // partner accepts our request to resume transmission from given position
 				{
 					locallyInitiated = false;
 					chat = false;
 					resume = true;
-					// look up the DCC RESUME register to get the partner's IP address and file size
-					int k = RESUMERegister.size();
-					if (k == 0) return; // erroneous DCC ACCEPT received
-					port = Integer.parseInt(IRCProtocolDroid.getSecond(allInOne)); // extract port number
-					boolean foundIt = false;
-					/*
-						According to mIRC, nickname and port number are sufficient for a unique identification.
-						I don't quite agree, but I will follow that standard here.
-					*/
-					int i;
-					for (i = 0; i < k; ++i)
-						{
-							if ((RESUMERegister.elementAt(i)).getNickname().equals(nick))
-								if ((RESUMERegister.elementAt(i)).getPort() == port)
-									{
-										foundIt = true;
-										break;
-									}
-						}
-					if (foundIt)
-						{
-							DCCManager tmp = SENDRegister.elementAt(i);
-							tmp.setResume(true);
-							(new DCCLinker(tmp, manager)).start();
-						}
+					// "ACCEPT <file> <port> <position>"
+					long[] portAndPosition = parsePortAndPosition(allInOne);
+					if (portAndPosition == null) return; // erroneous DCC ACCEPT received
+					// look up the DCC RESUME requests to get the partner's IP address and file size
+					DCCManager tmp = DCCRegistry.RESUMES.lookup(nick, (int) portAndPosition[0]);
+					if (tmp == null) return;
+					DCCRegistry.RESUMES.remove(tmp);
+					tmp.setPosition(portAndPosition[1]);
+					tmp.setResume(true);
+					DCCScheduler.getShared().submit(new DCCLinker(tmp, manager), tmp, manager.getEnvironment());
 				}
 		}
 
@@ -253,15 +224,20 @@ public class DCCManager
 	public void setAbsoluteFileName(String new_name) {absoluteFileName = new_name; }
 	public long getFileSize() {return fileSize; }
 	public long getPosition() {return position; }
+	public void setPosition(long new_position) {position = new_position; }
 	public int getPort() {return port; }
+	public void setPort(int new_port) {port = new_port; }
 	public String getIPAddress() {return ipAddress; }
 	public boolean isChat() {return chat; }
 	public boolean isResume() {return resume; }
 	public void setResume(boolean new_state) {resume = new_state; }
 	public boolean isLocallyInitiated() {return locallyInitiated; }
+	public boolean isTurbo() {return turbo; }
 	public javax.swing.JInternalFrame getInterface() {if (chat) return chatInterface; else return fileInterface; }
 	public DCCLinker getLinker() {return linker; }
 	public void setLinker(DCCLinker linker) {this.linker = linker; }
+	public DCCTransfer getTransfer() {return transfer; }
+	public void setTransfer(DCCTransfer transfer) {this.transfer = transfer; }
 
 
 	/**
@@ -288,7 +264,12 @@ public class DCCManager
 	  * Update the file transfer interface to give the user progress information.
 	  * @param transferred the total data amount transferred so far
 	  */
-	public void updateFileInterface(long transferred) {if (!chat) fileInterface.update(transferred); }
+	public void updateFileInterface(long transferred)
+		{
+			if (chat) return;
+			if (transfer != null) transfer.progress(transferred);
+			fileInterface.update(transferred);
+		}
 
 	/**
 	  * Called by the graphical chat interface to send the typed message out to the chat partner.
@@ -347,6 +328,20 @@ public class DCCManager
 		}
 
 
+	/**
+	  * Reads the last two words of a DCC RESUME or ACCEPT message.
+	  * @param message the message, e.g. "RESUME file.txt 1024 5000"
+	  * @return the port number and the position, or null if they are not numbers
+	  */
+	private static long[] parsePortAndPosition(String message)
+		{
+			String[] words = message.trim().split(" +");
+			if (words.length < 4) return null;
+			try {return new long[] {Integer.parseInt(words[words.length - 2]), Long.parseLong(words[words.length - 1])}; }
+			catch (NumberFormatException nfe) {return null; }
+		}
+
+
 	/**
 	  * Called by fish.robo.nova.guis.DCCPromptDialog.
 	  * @param dccm the manager object of the DCC session
@@ -354,12 +349,13 @@ public class DCCManager
 	  */
 	public static void startLinker(DCCManager dccm, NovaManager nm)
 		{
-			(new DCCLinker(dccm, nm)).start();
+			DCCScheduler.getShared().submit(new DCCLinker(dccm, nm), dccm, nm.getEnvironment());
 		}
 
 
 	public void shutDown()
 		{
+			DCCRegistry.removeAll(this);
 			if (chatInterface != null) chatInterface.dispose();
 			if (fileInterface != null) fileInterface.dispose();
 			if (linker != null) linker.shutDown();
@@ -0,0 +1,121 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+  * The open DCC offers of all sessions, found by nickname and port number in constant time.
+  * According to mIRC, nickname and port number are sufficient for a unique identification of a DCC RESUME or ACCEPT.
+  * An offer is removed when its connection is made or its session ends, and is dropped if it was not taken up
+  * within OFFER_TIMEOUT. The registries can be read from any thread without locking, e.g. for the metrics.
+  * @author Kai Berk Oezer
+  */
+public final class DCCRegistry
+{
+	/** milliseconds after which an offer that was not taken up is dropped */
+	public static final long OFFER_TIMEOUT = 10 * 60 * 1000;
+
+	/** the outgoing DCC SEND offers, looked up when a DCC RESUME arrives */
+	public static final DCCRegistry SENDS = new DCCRegistry("send");
+	/** the outgoing DCC RESUME requests, looked up when a DCC ACCEPT arrives */
+	public static final DCCRegistry RESUMES = new DCCRegistry("resume");
+
+	/** An offer and the time at which it is dropped. */
+	private static final class Offer
+		{
+			final DCCManager dcc;
+			final long expires = System.currentTimeMillis() + OFFER_TIMEOUT;
+
+			Offer(DCCManager dcc) {this.dcc = dcc; }
+		}
+
+	private final ConcurrentHashMap<String,Offer> offers = new ConcurrentHashMap<String,Offer>();
+
+
+	/** @param name the name of the registry in the metrics, e.g. "dcc.offers.send" for "send" */
+	private DCCRegistry(String name)
+		{
+			NovaMetrics.register("dcc.offers." + name, () -> offers.size());
+		}
+
+
+	/** @return the key of an offer; nicknames are compared by the RFC 1459 rules, as the server of the offer is not known */
+	private static String key(String nick, int port) {return IRCCaseMapping.RFC1459.fold(nick) + ' ' + port; }
+
+
+	/**
+	  * Adds an offer, replacing an older one with the same nickname and port. Drops the expired offers.
+	  * @param dcc the DCC session, with the nickname of the partner and the port number of the offer
+	  */
+	public void register(DCCManager dcc)
+		{
+			long now = System.currentTimeMillis();
+			offers.values().removeIf(offer -> offer.expires < now);
+			offers.put(key(dcc.getNickname(), dcc.getPort()), new Offer(dcc));
+		}
+
+
+	/**
+	  * @param nick the nickname of the partner
+	  * @param port the port number of the offer
+	  * @return the DCC session of the offer, or null if there is no such offer or it has expired
+	  */
+	public DCCManager lookup(String nick, int port)
+		{
+			Offer offer = offers.get(key(nick, port));
+			return (offer == null || offer.expires < System.currentTimeMillis()) ? null : offer.dcc;
+		}
+
+
+	/**
+	  * Removes the offer of a DCC session, e.g. when its connection is made or when it ends.
+	  * @param dcc the DCC session
+	  */
+	public void remove(DCCManager dcc)
+		{
+			Offer offer = offers.get(key(dcc.getNickname(), dcc.getPort()));
+			if (offer != null && offer.dcc == dcc) offers.remove(key(dcc.getNickname(), dcc.getPort()), offer);
+		}
+
+
+	/** Removes the offers of a DCC session from all registries. */
+	public static void removeAll(DCCManager dcc)
+		{
+			SENDS.remove(dcc);
+			RESUMES.remove(dcc);
+		}
+
+
+	/** @return the number of open offers, including expired ones that were not dropped yet */
+	public int size() {return offers.size(); }
+
+
+	/** @return the DCC sessions of the offers that have not expired, read without locking */
+	public Collection<DCCManager> getOffers()
+		{
+			ArrayList<DCCManager> sessions = new ArrayList<DCCManager>(offers.size());
+			long now = System.currentTimeMillis();
+			for (Offer offer : offers.values()) if (offer.expires >= now) sessions.add(offer.dcc);
+			return sessions;
+		}
+}
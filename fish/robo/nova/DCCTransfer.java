@@ -0,0 +1,125 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+/**
+  * The state and progress of a DCC file transfer, as shown by the transfer view.
+  * Written by the thread of the transfer and read by any thread without locking.
+  * @author Kai Berk Oezer
+  */
+public class DCCTransfer
+{
+	public enum State {QUEUED, ACTIVE, FINISHED, FAILED}
+
+	/** the DCC session, asked again at the start since the peer of an own offer may ask to resume while it waits */
+	private final DCCManager dcc;
+	private final String nickname;
+	private final String fileName;
+	private final boolean sending;
+	private final long fileSize;
+	private volatile State state = State.QUEUED;
+	/** the position in the file up to which the data was transferred */
+	private volatile long position;
+	/** the position at which the transfer started, non-zero for DCC RESUME */
+	private volatile long startPosition;
+	/** System.nanoTime() of the start and the end of the transfer, 0 if not yet reached */
+	private volatile long started = 0, ended = 0;
+	/** the position and time of the last rate sample */
+	private long samplePosition, sampleTime;
+	/** the bytes per second between the last two samples */
+	private volatile long rate = 0;
+
+
+	/** @param dcc the DCC session of the transfer */
+	public DCCTransfer(DCCManager dcc)
+		{
+			this.dcc = dcc;
+			nickname = dcc.getNickname();
+			fileName = dcc.getFileName();
+			sending = dcc.isLocallyInitiated();
+			fileSize = dcc.getFileSize();
+			position = dcc.isResume() ? dcc.getPosition() : 0;
+		}
+
+
+	public String getNickname() {return nickname; }
+	public String getFileName() {return fileName; }
+	/** @return true for DCC SEND, false for receiving a file */
+	public boolean isSending() {return sending; }
+	public long getFileSize() {return fileSize; }
+	public State getState() {return state; }
+	public long getPosition() {return position; }
+
+
+	/** Called when a worker begins the transfer. */
+	public void start()
+		{
+			if (dcc.isResume()) position = dcc.getPosition();
+			started = sampleTime = System.nanoTime();
+			startPosition = samplePosition = position;
+			state = State.ACTIVE;
+		}
+
+
+	/** Called by the transfer when the data up to the given position has been transferred. */
+	public void progress(long newPosition) {position = newPosition; }
+
+
+	/** Called when the transfer ends. It counts as finished if the whole file was transferred. */
+	public void finish()
+		{
+			ended = System.nanoTime();
+			rate = 0;
+			state = (position >= fileSize) ? State.FINISHED : State.FAILED;
+		}
+
+
+	/**
+	  * Takes a sample of the rate. Called by the transfer view about once a second, and by the dcc.rate_bps metric.
+	  * Calls less than a quarter second apart return the last sample.
+	  * @return the bytes per second since the last sample
+	  */
+	public synchronized long sampleRate()
+		{
+			if (state != State.ACTIVE) return rate;
+			long now = System.nanoTime(), at = position;
+			if (now - sampleTime >= 250000000L)
+				{
+					rate = (at - samplePosition) * 1000000000L / (now - sampleTime);
+					samplePosition = at;
+					sampleTime = now;
+				}
+			return rate;
+		}
+
+
+	/** @return the bytes per second between the last two samples, 0 if not active */
+	public long getRate() {return rate; }
+
+
+	/** @return the bytes per second over the whole transfer so far, 0 if it has not started */
+	public long getAverageRate()
+		{
+			if (started == 0) return 0;
+			long nanos = ((ended != 0) ? ended : System.nanoTime()) - started;
+			return (nanos <= 0) ? 0 : (position - startPosition) * 1000000000L / nanos;
+		}
+}
@@ -0,0 +1,69 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.*;
+
+/**
+  * A group of messages that the server marks as belonging together with the IRCv3 "batch" capability,
+  * e.g. the QUITs of a netsplit. The server opens the batch with "BATCH +<reference> <type> <parameters>",
+  * tags each message of the batch with "batch=<reference>" and closes it with "BATCH -<reference>".
+  * The messages are collected until the batch is closed and then applied together.
+  * @author Kai Berk Oezer
+  */
+public class IRCBatch
+{
+	private final String reference;
+	private final String type;
+	private final List<String> params;
+	private final ArrayList<IRCMessage> messages = new ArrayList<IRCMessage>();
+
+
+	/**
+	  * @param reference the reference tag of the batch, without '+'
+	  * @param type the type of the batch, e.g. "netsplit"
+	  * @param params the parameters after the type, e.g. the two servers of a netsplit
+	  */
+	public IRCBatch(String reference, String type, List<String> params)
+		{
+			this.reference = reference;
+			this.type = type;
+			this.params = params;
+		}
+
+
+	/** Adds a message of the batch. */
+	public void add(IRCMessage message) {messages.add(message); }
+
+	public String getReference() {return reference; }
+
+	/** @return the type of the batch, e.g. "netsplit", "netjoin" or "chathistory" */
+	public String getType() {return type; }
+
+	/** @return true if the batch has the given type, ignoring case */
+	public boolean isType(String name) {return type.equalsIgnoreCase(name); }
+
+	/** @return the parameters after the type */
+	public List<String> getParams() {return params; }
+
+	/** @return the messages of the batch, in the order they were received */
+	public List<IRCMessage> getMessages() {return messages; }
+}
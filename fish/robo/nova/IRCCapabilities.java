@@ -0,0 +1,224 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+  * Negotiates IRCv3 capabilities (CAP version 302) with the server.
+  * The client sends "CAP LS 302" before NICK and USER, so the server holds back the registration.
+  * When the server has listed its capabilities, those that some feature wants are requested with CAP REQ,
+  * and "CAP END" finishes the negotiation when all requests are answered.
+  * Features subscribe with want() and are told when their capability is enabled or disabled,
+  * also later through CAP NEW and CAP DEL. A feature that has to talk to the server before the registration,
+  * like SASL, can hold back CAP END with holdEnd() and releaseEnd().
+  * Used on the inbound executor of the connection.
+  * @author Kai Berk Oezer
+  */
+public class IRCCapabilities
+{
+	/** Is told when a wanted capability is enabled or disabled. */
+	public interface Listener
+		{
+			/**
+			  * @param name the name of the capability, e.g. "multi-prefix"
+			  * @param enabled true if the capability was acknowledged by the server, false if it was removed
+			  */
+			public void capabilityChanged(String name, boolean enabled);
+		}
+
+	/** the longest line that a client may send, without CRLF */
+	private static final int MAX_LINE_LENGTH = 510;
+
+	/** sends a line to the server */
+	private final Consumer<String> sender;
+	/** the features that want a capability, by name of the capability */
+	private final LinkedHashMap<String,List<Listener>> wanted = new LinkedHashMap<String,List<Listener>>();
+	/** the capabilities offered by the server, with their values, e.g. "sasl" to "PLAIN,EXTERNAL" */
+	private final HashMap<String,String> available = new HashMap<String,String>();
+	/** the capabilities acknowledged by the server */
+	private final HashSet<String> enabled = new HashSet<String>();
+	/** true from the connection until CAP END is sent */
+	private boolean negotiating = false;
+	/** the number of CAP REQ lines that are not answered yet */
+	private int pendingRequests = 0;
+	/** the number of features that hold back CAP END */
+	private int holds = 0;
+
+
+	/** @param sender sends a line to the server, e.g. NovaManager.sendMessage */
+	public IRCCapabilities(Consumer<String> sender) {this.sender = sender; }
+
+
+	/**
+	  * Subscribes a feature to a capability. The capability is requested with every connection to a server that offers it.
+	  * @param name the name of the capability, e.g. "batch"
+	  * @param listener is told when the capability is enabled or disabled
+	  */
+	public synchronized void want(String name, Listener listener)
+		{
+			List<Listener> listeners = wanted.get(name);
+			if (listeners == null) wanted.put(name, listeners = new ArrayList<Listener>());
+			listeners.add(listener);
+		}
+
+
+	/** Forgets the capabilities of the last server. Called when a new connection is made, before "CAP LS 302" is sent. */
+	public synchronized void reset()
+		{
+			available.clear();
+			enabled.clear();
+			negotiating = true;
+			pendingRequests = 0;
+			holds = 0;
+		}
+
+
+	/** @return true if the server has acknowledged the capability */
+	public synchronized boolean isEnabled(String name) {return enabled.contains(name); }
+
+	/**
+	  * @param name the name of the capability, e.g. "sasl"
+	  * @return the value that the server listed with the capability, e.g. "PLAIN,EXTERNAL",
+	  *   the empty String for a capability without value, or null if the server does not offer it
+	  */
+	public synchronized String getValue(String name) {return available.get(name); }
+
+
+	/** Keeps the negotiation open, e.g. while SASL authentication is running. Must be followed by releaseEnd(). */
+	public synchronized void holdEnd() {++holds; }
+
+	/** Ends the negotiation if nothing else holds it back. */
+	public synchronized void releaseEnd()
+		{
+			if (holds > 0) --holds;
+			endIfDone();
+		}
+
+
+	/**
+	  * Processes a CAP message from the server.
+	  * @param message a message with the command CAP: "CAP <nick> <subcommand> [*] :<capabilities>"
+	  */
+	public synchronized void handle(IRCMessage message)
+		{
+			String subcommand = message.getParam(1);
+			if (subcommand == null) return;
+			String list = (message.getParamCount() > 2) ? message.getLastParam() : "";
+			// a "*" before the list means that more lines follow
+			boolean more = message.getParamCount() > 3 && message.paramEqualsIgnoreCase(2, "*");
+			switch (subcommand.toUpperCase(Locale.ROOT))
+				{
+					case "LS":
+						addAvailable(list);
+						if (!more && negotiating) request();
+						break;
+					case "NEW":
+						addAvailable(list);
+						request();
+						break;
+					case "DEL":
+						for (String name : split(list))
+							{
+								available.remove(name);
+								if (enabled.remove(name)) notify(name, false);
+							}
+						break;
+					case "ACK":
+						for (String name : split(list))
+							{
+								boolean off = name.startsWith("-");
+								if (off) name = name.substring(1);
+								if (off ? enabled.remove(name) : enabled.add(name)) notify(name, !off);
+							}
+						if (pendingRequests > 0) --pendingRequests;
+						endIfDone();
+						break;
+					case "NAK":
+						if (pendingRequests > 0) --pendingRequests;
+						endIfDone();
+						break;
+					default: // LIST and unknown subcommands carry nothing we need
+				}
+		}
+
+
+	/** Reads a list of capabilities, where each may have a value after '=', e.g. "sasl=PLAIN,EXTERNAL batch". */
+	private void addAvailable(String list)
+		{
+			for (String cap : split(list))
+				{
+					int eq = cap.indexOf('=');
+					if (eq < 0) available.put(cap, "");
+					else available.put(cap.substring(0, eq), cap.substring(eq + 1));
+				}
+		}
+
+
+	/** Requests the wanted capabilities that the server offers and that are not enabled yet, in as few lines as fit. */
+	private void request()
+		{
+			StringBuilder line = new StringBuilder();
+			for (String name : wanted.keySet())
+				{
+					if (!available.containsKey(name) || enabled.contains(name)) continue;
+					if (line.length() > 0 && line.length() + 1 + name.length() > MAX_LINE_LENGTH)
+						{
+							send(line);
+							line.setLength(0);
+						}
+					line.append((line.length() == 0) ? "CAP REQ :" : " ").append(name);
+				}
+			if (line.length() > 0) send(line);
+			endIfDone();
+		}
+
+
+	private void send(StringBuilder line)
+		{
+			++pendingRequests;
+			sender.accept(line.toString());
+		}
+
+
+	/** Sends CAP END once all requests are answered and no feature holds the negotiation open. */
+	private void endIfDone()
+		{
+			if (!negotiating || pendingRequests > 0 || holds > 0) return;
+			negotiating = false;
+			sender.accept("CAP END");
+		}
+
+
+	private void notify(String name, boolean on)
+		{
+			List<Listener> listeners = wanted.get(name);
+			if (listeners != null) for (Listener listener : listeners) listener.capabilityChanged(name, on);
+		}
+
+
+	private static String[] split(String list)
+		{
+			list = list.trim();
+			return list.isEmpty() ? new String[0] : list.split(" +");
+		}
+}
@@ -0,0 +1,103 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+/**
+  * The rule by which an IRC server compares nicknames and channel names, as announced by CASEMAPPING in ISUPPORT (005).
+  * Under "rfc1459", the default, the characters {}|^ are the lower case forms of []\~.
+  * Under "strict-rfc1459" this holds for {}| only, and under "ascii" only the letters A to Z are folded.
+  * @author Kai Berk Oezer
+  */
+public final class IRCCaseMapping
+{
+	public static final IRCCaseMapping ASCII = new IRCCaseMapping("ascii", "");
+	public static final IRCCaseMapping STRICT_RFC1459 = new IRCCaseMapping("strict-rfc1459", "[]\\{}|");
+	public static final IRCCaseMapping RFC1459 = new IRCCaseMapping("rfc1459", "[]\\~{}|^");
+
+	private final String name;
+	/** lower case form of each ASCII character */
+	private final char[] lower = new char[128];
+
+
+	/**
+	  * @param name the name used in ISUPPORT
+	  * @param extra upper case characters besides A to Z, followed by their lower case forms in the same order
+	  */
+	private IRCCaseMapping(String name, String extra)
+		{
+			this.name = name;
+			for (char c = 0; c < 128; ++c) lower[c] = (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+			int half = extra.length() / 2;
+			for (int k = 0; k < half; ++k) lower[extra.charAt(k)] = extra.charAt(half + k);
+		}
+
+
+	/**
+	  * @param name the value of the CASEMAPPING token, case is ignored
+	  * @return the matching case mapping, RFC1459 for unknown names
+	  */
+	public static IRCCaseMapping forName(String name)
+		{
+			if (ASCII.name.equalsIgnoreCase(name)) return ASCII;
+			if (STRICT_RFC1459.name.equalsIgnoreCase(name)) return STRICT_RFC1459;
+			return RFC1459;
+		}
+
+
+	/** @return the name used in ISUPPORT, e.g. "rfc1459" */
+	public String getName() {return name; }
+
+
+	/**
+	  * @param s a nickname or channel name
+	  * @return the lower case form of the name; the same String if it has no upper case characters
+	  */
+	public String fold(String s)
+		{
+			int length = s.length();
+			int k = 0;
+			while (k < length && !folds(s.charAt(k))) ++k;
+			if (k == length) return s;
+			char[] chars = s.toCharArray();
+			for (; k < length; ++k) if (chars[k] < 128) chars[k] = lower[chars[k]];
+			return new String(chars);
+		}
+
+
+	/** @return true if both names are equal under this case mapping */
+	public boolean equals(String a, String b)
+		{
+			if (a == null || b == null) return a == b;
+			int length = a.length();
+			if (length != b.length()) return false;
+			for (int k = 0; k < length; ++k)
+				{
+					char x = a.charAt(k), y = b.charAt(k);
+					if (x != y && (x >= 128 || y >= 128 || lower[x] != lower[y])) return false;
+				}
+			return true;
+		}
+
+
+	private boolean folds(char c) {return c < 128 && lower[c] != c; }
+
+	public String toString() {return name; }
+}
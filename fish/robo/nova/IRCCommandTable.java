@@ -0,0 +1,117 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+  * Maps IRC commands and numeric replies to their handlers.
+  * Numeric replies are looked up by their code in an array, commands by their name in a hash table.
+  * Handlers can be registered and replaced at any time, also while messages are being dispatched.
+  * Used by NovaManager to process incoming messages.
+  * @author Kai Berk Oezer
+  */
+public class IRCCommandTable
+{
+	/** handlers of numeric replies, indexed by the reply code */
+	private final AtomicReferenceArray<IRCMessageHandler> numerics = new AtomicReferenceArray<IRCMessageHandler>(1000);
+
+	/** handlers of word commands, keyed by the upper case command name */
+	private final ConcurrentHashMap<String, IRCMessageHandler> commands = new ConcurrentHashMap<String, IRCMessageHandler>();
+
+	/** handler for messages that have no registered handler */
+	private volatile IRCMessageHandler fallback;
+
+
+	/**
+	  * @param command the command name, e.g. "PRIVMSG"; case is ignored
+	  * @param handler the new handler or null to remove the current one
+	  * @return the handler that was registered before or null
+	  */
+	public IRCMessageHandler register(String command, IRCMessageHandler handler)
+		{
+			String key = command.toUpperCase(Locale.ROOT);
+			if (handler == null) return commands.remove(key);
+			else return commands.put(key, handler);
+		}
+
+
+	/**
+	  * @param numeric the three-digit reply code, e.g. 376
+	  * @param handler the new handler or null to remove the current one
+	  * @return the handler that was registered before or null
+	  */
+	public IRCMessageHandler register(int numeric, IRCMessageHandler handler)
+		{
+			return numerics.getAndSet(numeric, handler);
+		}
+
+
+	/**
+	  * Registers the same handler for several reply codes.
+	  * @param codes the reply codes
+	  * @param handler the handler
+	  */
+	public void register(int[] codes, IRCMessageHandler handler)
+		{
+			for (int i = 0; i < codes.length; ++i) register(codes[i], handler);
+		}
+
+
+	/** @param handler called for all messages that have no handler of their own */
+	public void setFallback(IRCMessageHandler handler) {fallback = handler; }
+
+
+	/**
+	  * Finds the handler of a message.
+	  * @return the registered handler or null if there is none
+	  */
+	public IRCMessageHandler lookup(IRCMessage message)
+		{
+			int numeric = message.getNumeric();
+			if (numeric != -1) return numerics.get(numeric);
+			String command = message.getCommand();
+			IRCMessageHandler handler = commands.get(command);
+			// servers send commands in upper case, so the conversion is rarely needed
+			if (handler == null) handler = commands.get(command.toUpperCase(Locale.ROOT));
+			return handler;
+		}
+
+
+	/**
+	  * Passes the message to its handler or to the fallback handler.
+	  * @return true if a handler was found for the message
+	  */
+	public boolean dispatch(IRCMessage message)
+		{
+			IRCMessageHandler handler = lookup(message);
+			if (handler != null)
+				{
+					handler.handle(message);
+					return true;
+				}
+			IRCMessageHandler other = fallback;
+			if (other != null) other.handle(message);
+			return false;
+		}
+}
@@ -0,0 +1,258 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+/**
+  * An IRC message that is tokenized once into offsets of prefix, command and parameters.
+  * The accessors work on the original line; a substring is created only when a part is requested as a String.
+  * Replaces the repeated scanning of IRCProtocolDroid.getNth() and IRCProtocolDroid.getRest() in NovaManager.
+  * IRCv3 message tags ("@time=...;batch=7 :nick!user@host PRIVMSG ...") are located too and read with getTag().
+  * @author Kai Berk Oezer
+  */
+public class IRCMessage
+{
+	/** the maximum number of parameters of a message, as given in RFC 1459 */
+	public static final int MAX_PARAMS = 15;
+
+	/** the message line as received from the server */
+	private final String line;
+
+	private int tagsStart = -1, tagsEnd = -1;
+	private int prefixStart = -1, prefixEnd = -1, nickEnd = -1;
+	private int commandStart, commandEnd;
+	private final int[] paramStart = new int[MAX_PARAMS];
+	private final int[] paramEnd = new int[MAX_PARAMS];
+	private int paramCount = 0;
+
+	/** true if the last parameter was introduced by a colon */
+	private boolean trailing = false;
+
+	/** the numeric reply code or -1 if the command is not numeric */
+	private int numeric = -1;
+
+	/** counts the Strings created by the accessors of this message */
+	private int allocations = 0;
+
+
+	/** @param line one line received from the IRC server, without the line terminator */
+	public IRCMessage(String line)
+		{
+			this.line = line;
+			parse();
+		}
+
+
+	/** Locates tags, prefix, command and parameters in a single pass. */
+	private void parse()
+		{
+			int length = line.length();
+			int i = 0;
+			if (length > 0 && line.charAt(0) == '@')
+				{
+					tagsStart = 1;
+					while (i < length && line.charAt(i) != ' ') ++i;
+					tagsEnd = i;
+					while (i < length && line.charAt(i) == ' ') ++i;
+				}
+			if (i < length && line.charAt(i) == ':')
+				{
+					++i;
+					prefixStart = i;
+					while (i < length && line.charAt(i) != ' ')
+						{
+							if (line.charAt(i) == '!' && nickEnd == -1) nickEnd = i;
+							++i;
+						}
+					prefixEnd = i;
+				}
+			while (i < length && line.charAt(i) == ' ') ++i;
+			commandStart = i;
+			while (i < length && line.charAt(i) != ' ') ++i;
+			commandEnd = i;
+			if (commandEnd - commandStart == 3)
+				{
+					int code = 0;
+					for (int k = commandStart; k < commandEnd; ++k)
+						{
+							char c = line.charAt(k);
+							if (c < '0' || c > '9') {code = -1; break; }
+							code = code * 10 + (c - '0');
+						}
+					numeric = code;
+				}
+			while (paramCount < MAX_PARAMS)
+				{
+					while (i < length && line.charAt(i) == ' ') ++i;
+					if (i >= length) break;
+					if (line.charAt(i) == ':' || paramCount == MAX_PARAMS - 1)
+						{
+							paramStart[paramCount] = (line.charAt(i) == ':') ? i + 1 : i;
+							paramEnd[paramCount++] = length;
+							trailing = true;
+							break;
+						}
+					paramStart[paramCount] = i;
+					while (i < length && line.charAt(i) != ' ') ++i;
+					paramEnd[paramCount++] = i;
+				}
+		}
+
+
+	/** Creates and counts a substring of the line. */
+	private String part(int start, int end)
+		{
+			++allocations;
+			return line.substring(start, end);
+		}
+
+
+	/** @return the whole message line as received */
+	public String getLine() {return line; }
+
+	/** @return true if the message has IRCv3 message tags */
+	public boolean hasTags() {return tagsStart != -1; }
+
+	/**
+	  * Finds a message tag and unescapes its value.
+	  * @param key the key of the tag, e.g. "time" or "batch"
+	  * @return the value of the tag, the empty String for a tag without value, or null if the message has no such tag
+	  */
+	public String getTag(String key)
+		{
+			int i = tagsStart;
+			while (i != -1 && i < tagsEnd)
+				{
+					int end = line.indexOf(';', i);
+					if (end == -1 || end > tagsEnd) end = tagsEnd;
+					int keyEnd = line.indexOf('=', i);
+					if (keyEnd == -1 || keyEnd > end) keyEnd = end;
+					if (keyEnd - i == key.length() && line.regionMatches(i, key, 0, key.length()))
+						{
+							++allocations;
+							return (keyEnd == end) ? "" : unescapeTag(line, keyEnd + 1, end);
+						}
+					i = end + 1;
+				}
+			return null;
+		}
+
+	/** Unescapes a tag value: "\:" is ';', "\s" is a space, "\r" and "\n" are CR and LF, "\\" is a backslash. */
+	private static String unescapeTag(String line, int start, int end)
+		{
+			int escape = line.indexOf('\\', start);
+			if (escape == -1 || escape >= end) return line.substring(start, end);
+			StringBuilder value = new StringBuilder(end - start);
+			for (int k = start; k < end; ++k)
+				{
+					char c = line.charAt(k);
+					if (c != '\\') {value.append(c); continue; }
+					if (++k == end) break; // a lone backslash at the end is dropped
+					c = line.charAt(k);
+					switch (c)
+						{
+							case ':': value.append(';'); break;
+							case 's': value.append(' '); break;
+							case 'r': value.append('\r'); break;
+							case 'n': value.append('\n'); break;
+							default: value.append(c);
+						}
+				}
+			return value.toString();
+		}
+
+	/** @return true if the message starts with a prefix (the sender) */
+	public boolean hasPrefix() {return prefixStart != -1; }
+
+	/** @return the prefix without the leading colon, or null if there is no prefix */
+	public String getPrefix() {return hasPrefix() ? part(prefixStart, prefixEnd) : null; }
+
+	/**
+	  * Extracts the nickname from a prefix of the form nick!user@host.
+	  * @return the nickname of the sender or null if the prefix does not denote a user
+	  */
+	public String getNick() {return (nickEnd == -1) ? null : part(prefixStart, nickEnd); }
+
+	/** @return the command, as sent by the server */
+	public String getCommand() {return part(commandStart, commandEnd); }
+
+	/**
+	  * Compares the command with the given name without creating a String.
+	  * @param name the command name, e.g. "PRIVMSG"
+	  */
+	public boolean isCommand(String name)
+		{
+			return (commandEnd - commandStart == name.length()) && line.regionMatches(true, commandStart, name, 0, name.length());
+		}
+
+	/** @return the three-digit reply code of a numeric message or -1 if the command is a word */
+	public int getNumeric() {return numeric; }
+
+	/** @return the number of parameters, including the trailing one */
+	public int getParamCount() {return paramCount; }
+
+	/**
+	  * @param index the index of the parameter, starting at 0
+	  * @return the parameter, without the leading colon of a trailing parameter, or null if there is no such parameter
+	  */
+	public String getParam(int index)
+		{
+			if (index < 0 || index >= paramCount) return null;
+			return part(paramStart[index], paramEnd[index]);
+		}
+
+	/** @return the last parameter, which is usually the text of the message, or null if there are no parameters */
+	public String getLastParam() {return getParam(paramCount - 1); }
+
+	/** @return true if the last parameter was introduced by a colon */
+	public boolean hasTrailing() {return trailing; }
+
+	/**
+	  * Compares a parameter with the given string, ignoring case, without creating a String.
+	  * @param index the index of the parameter
+	  * @param value the string to compare to
+	  */
+	public boolean paramEqualsIgnoreCase(int index, String value)
+		{
+			if (index < 0 || index >= paramCount) return false;
+			int length = paramEnd[index] - paramStart[index];
+			return (length == value.length()) && line.regionMatches(true, paramStart[index], value, 0, length);
+		}
+
+	/**
+	  * Returns the remainder of the line starting at the given parameter.
+	  * Colons inside the remainder are left as they are.
+	  * @param index the index of the first parameter of the remainder
+	  * @return the remainder of the line or null if there is no such parameter
+	  */
+	public String getParamsFrom(int index)
+		{
+			if (index < 0 || index >= paramCount) return null;
+			return part(paramStart[index], line.length());
+		}
+
+	/**
+	  * The parse itself creates no Strings. Each accessor that returns a String creates one.
+	  * @return the number of Strings created from this message so far
+	  */
+	public int getAllocationCount() {return allocations; }
+
+	public String toString() {return line; }
+}
@@ -0,0 +1,100 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.*;
+
+/**
+  * A hash map keyed by nicknames or channel names, which are compared by the case mapping of the server.
+  * Names are folded to lower case once when they are stored or looked up.
+  * Not synchronized. NovaManager only uses it from the inbound executor of the connection.
+  * @author Kai Berk Oezer
+  */
+public class IRCNameMap<V>
+{
+	private IRCCaseMapping mapping = IRCCaseMapping.RFC1459;
+	private HashMap<String,V> map = new HashMap<String,V>();
+	/** the names as given to put(), used to fold them again when the case mapping changes */
+	private HashMap<String,String> names = new HashMap<String,String>();
+
+
+	/** @return the value stored for the name or null */
+	public V get(String name) {return (name == null) ? null : map.get(mapping.fold(name)); }
+
+	/** @return the value that was stored for the name before or null */
+	public V put(String name, V value)
+		{
+			String key = mapping.fold(name);
+			names.put(key, name);
+			return map.put(key, value);
+		}
+
+	/** @return the removed value or null */
+	public V remove(String name)
+		{
+			String key = mapping.fold(name);
+			names.remove(key);
+			return map.remove(key);
+		}
+
+	/**
+	  * Removes the entry only if it maps the name to the given value.
+	  * @return true if the entry was removed
+	  */
+	public boolean remove(String name, V value)
+		{
+			String key = mapping.fold(name);
+			if (map.get(key) != value) return false;
+			names.remove(key);
+			map.remove(key);
+			return true;
+		}
+
+	public boolean containsName(String name) {return map.containsKey(mapping.fold(name)); }
+
+	public int size() {return map.size(); }
+
+	/** @return a copy of the values, safe to iterate while the map changes */
+	public List<V> values() {return new ArrayList<V>(map.values()); }
+
+	public void clear()
+		{
+			map.clear();
+			names.clear();
+		}
+
+	public IRCCaseMapping getCaseMapping() {return mapping; }
+
+	/**
+	  * Changes the case mapping and folds all stored names again.
+	  * Names that become equal under the new mapping are merged; the last one wins.
+	  */
+	public void setCaseMapping(IRCCaseMapping newMapping)
+		{
+			if (newMapping == mapping) return;
+			HashMap<String,V> oldMap = map;
+			HashMap<String,String> oldNames = names;
+			mapping = newMapping;
+			map = new HashMap<String,V>();
+			names = new HashMap<String,String>();
+			for (Map.Entry<String,V> entry : oldMap.entrySet()) put(oldNames.get(entry.getKey()), entry.getValue());
+		}
+}
@@ -0,0 +1,217 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import fish.robo.nova.netlinks.NovaSelector;
+
+/**
+  * Logs in to the account of the user with SASL while the capabilities are negotiated,
+  * so the user is identified before the registration completes and no NickServ round trip is needed.
+  * Supported are PLAIN (account and password) and EXTERNAL (the client certificate of the TLS connection,
+  * given by the "cert=<file>" option of the server entry).
+  * The account is read from environment lines "sasl <server address or *> PLAIN <account> <password>"
+  * or "sasl <server address or *> EXTERNAL". A line for the server address is used before a line for "*".
+  * If the authentication fails, or the server does not finish it within 15 seconds, the registration goes on without it.
+  * Used on the inbound executor of the connection.
+  * @author Kai Berk Oezer
+  */
+public class IRCSasl implements IRCCapabilities.Listener
+{
+	/** the longest piece of a Base64 encoded AUTHENTICATE message */
+	private static final int CHUNK = 400;
+	/** the milliseconds that the server may take to finish the authentication before it is aborted */
+	private static final long TIMEOUT = 15000;
+
+	private final IRCCapabilities capabilities;
+	/** sends a line to the server; the lines are not shown in debugging mode, as they hold the password */
+	private final Consumer<String> sender;
+	/** shows a note to the user */
+	private final Consumer<String> display;
+	/** runs a task on the thread that uses this object, e.g. the inbound executor */
+	private final Consumer<Runnable> owner;
+
+	/** the mechanism for the current server, "PLAIN" or "EXTERNAL", or null if SASL is not used */
+	private String mechanism = null;
+	private String account = null, password = null;
+	/** true while the authentication holds back CAP END */
+	private boolean running = false;
+	/** counts the authentications, so that the timeout of an earlier one is ignored */
+	private int attempt = 0;
+	/** cancels the timeout of the running authentication, null if none is scheduled */
+	private Runnable timeout = null;
+
+
+	/**
+	  * Subscribes to the "sasl" capability.
+	  * @param capabilities the capability negotiation of the session
+	  * @param sender sends a line to the server
+	  * @param display shows a note to the user
+	  * @param owner runs a task on the thread that uses this object; the timeout is handed over to it
+	  */
+	public IRCSasl(IRCCapabilities capabilities, Consumer<String> sender, Consumer<String> display, Consumer<Runnable> owner)
+		{
+			this.capabilities = capabilities;
+			this.sender = sender;
+			this.display = display;
+			this.owner = owner;
+			capabilities.want("sasl", this);
+		}
+
+
+	/**
+	  * Reads the account for a server from the environment. Called before each connection.
+	  * @param env the environment
+	  * @param serverAddress the address of the server
+	  * @param hasCertificate true if the connection offers a client certificate, which EXTERNAL needs
+	  */
+	public synchronized void configure(NovaEnvironment env, String serverAddress, boolean hasCertificate)
+		{
+			mechanism = account = password = null;
+			running = false;
+			cancelTimeout();
+			String[] chosen = null;
+			for (String line : env.getAllTagLines("sasl "))
+				{
+					String[] fields = line.trim().split(" +");
+					if (fields.length < 3) continue;
+					if (fields[1].equalsIgnoreCase(serverAddress)) chosen = fields;
+					else if (fields[1].equals("*") && chosen == null) chosen = fields;
+				}
+			if (chosen == null) return;
+			String mech = chosen[2].toUpperCase(Locale.ROOT);
+			if (mech.equals("EXTERNAL"))
+				{
+					if (hasCertificate) mechanism = mech;
+					else display.accept(" SASL EXTERNAL needs a TLS connection with a client certificate (option cert=<file> of the server).");
+				}
+			else if (mech.equals("PLAIN") && chosen.length >= 5)
+				{
+					mechanism = mech;
+					account = chosen[3];
+					password = chosen[4];
+				}
+		}
+
+
+	/** Starts the authentication when the server acknowledges the "sasl" capability. */
+	public synchronized void capabilityChanged(String name, boolean enabled)
+		{
+			if (!enabled || mechanism == null || running) return;
+			// with CAP 302 the server lists its mechanisms, e.g. "sasl=PLAIN,EXTERNAL"
+			String offered = capabilities.getValue("sasl");
+			if (offered != null && offered.length() > 0 && !Arrays.asList(offered.toUpperCase(Locale.ROOT).split(",")).contains(mechanism))
+				{
+					display.accept(" The server does not offer SASL " + mechanism + ", only " + offered + ".");
+					return;
+				}
+			running = true;
+			capabilities.holdEnd();
+			sender.accept("AUTHENTICATE " + mechanism);
+			int current = ++attempt;
+			try {timeout = NovaSelector.getShared().schedule(() -> owner.accept(() -> timedOut(current)), TIMEOUT); }
+			catch (java.io.IOException ioe) {timeout = null; }
+		}
+
+
+	/**
+	  * Aborts an authentication that the server did not finish in time, so that CAP END is sent and the registration goes on.
+	  * @param which the number of the authentication that timed out
+	  */
+	private synchronized void timedOut(int which)
+		{
+			if (!running || which != attempt) return;
+			timeout = null;
+			sender.accept("AUTHENTICATE *");
+			finish("The server did not finish the SASL authentication within " + (TIMEOUT / 1000) + " seconds");
+		}
+
+
+	/** Cancels the timeout of the running authentication. */
+	private void cancelTimeout()
+		{
+			if (timeout != null) timeout.run();
+			timeout = null;
+		}
+
+
+	/**
+	  * Called for AUTHENTICATE messages from the server. "AUTHENTICATE +" asks for the credentials.
+	  * @param message the incoming message from the IRC server
+	  */
+	public synchronized void authenticate(IRCMessage message)
+		{
+			if (!running || !"+".equals(message.getParam(0))) return;
+			if (mechanism.equals("EXTERNAL"))
+				{
+					// the identity is the certificate of the connection
+					sender.accept("AUTHENTICATE +");
+					return;
+				}
+			byte[] credentials = (account + '\0' + account + '\0' + password).getBytes(StandardCharsets.UTF_8);
+			String encoded = Base64.getEncoder().encodeToString(credentials);
+			int start = 0;
+			for (; start + CHUNK <= encoded.length(); start += CHUNK) sender.accept("AUTHENTICATE " + encoded.substring(start, start + CHUNK));
+			// a last piece shorter than CHUNK, or "+" if the last piece was full, ends the message
+			sender.accept("AUTHENTICATE " + ((start < encoded.length()) ? encoded.substring(start) : "+"));
+		}
+
+
+	/**
+	  * Called for the numeric replies of SASL (900 to 908).
+	  * @param message the incoming message from the IRC server
+	  */
+	public synchronized void reply(IRCMessage message)
+		{
+			switch (message.getNumeric())
+				{
+					case 900: // logged in as
+						display.accept(" " + message.getLastParam());
+						break;
+					case 903: // success
+						finish(null);
+						break;
+					case 902: case 904: case 905: case 906: case 907:
+						finish(message.getLastParam());
+						break;
+					case 908: // the mechanisms of the server, followed by 904
+						display.accept(" The server supports SASL " + message.getParam(1) + ".");
+						break;
+					default:
+				}
+		}
+
+
+	/**
+	  * Ends the authentication and lets the capability negotiation end.
+	  * @param error the reason of the failure as given by the server, or null on success
+	  */
+	private void finish(String error)
+		{
+			if (!running) return;
+			running = false;
+			cancelTimeout();
+			if (error != null) display.accept(" " + error + ". Continuing without authentication.");
+			capabilities.releaseEnd();
+		}
+}
@@ -20,18 +20,32 @@
 ****************************************************************************/
 package fish.robo.nova;
 
+import java.util.*;
+
 /**
   * This class represents a data element for listing server objects.
   * It is used in class ConnectionDialog to list known chat servers.
   * Names must contain no space characters.
+  * In the environment a server is written as "server <name> <address> <port> [options]".
+  * A '+' before the port number, e.g. "+6697", means that the connection uses TLS; so does the port number 6697 alone.
+  * The options are kept as they are; "pin-sha256:<Base64>" pins the public key of the server,
+  * "network=<name>" names the IRC network of the server, "cert=<file>" is a PKCS #12 key store with the client
+  * certificate for TLS (e.g. for SASL EXTERNAL) and "cert-password=<password>" its password.
   * @author Kai Berk Oezer
   * @version June 2000
   */
 public class IRCServerItem
 {
+	/** the port number of IRC over TLS */
+	public static final int TLS_PORT = 6697;
+
 	private String name;
 	private String address;
 	private int port;
+	/** true if the connection uses TLS */
+	private boolean secure = false;
+	/** the words after the port number, separated by spaces */
+	private String options = "";
 
 	public IRCServerItem() {}
 
@@ -50,4 +64,117 @@ public class IRCServerItem
 
 	public void setPort(int newPort) {port = newPort; }
 	public int getPort() {return port; }
+
+	public void setSecure(boolean useTLS) {secure = useTLS; }
+	public boolean isSecure() {return secure; }
+
+	public String getOptions() {return options; }
+
+
+	/** @return the network named by a "network=<name>" option in lower case, or null if there is none */
+	public String getNetwork()
+		{
+			String network = getOption("network=");
+			return (network != null) ? network.toLowerCase(Locale.ROOT) : null;
+		}
+
+
+	/** @return the file of the key store with the client certificate, or null if there is none */
+	public String getClientCertificate() {return getOption("cert="); }
+
+	/** @return the password of the key store with the client certificate, "" if there is none */
+	public String getClientCertificatePassword()
+		{
+			String password = getOption("cert-password=");
+			return (password != null) ? password : "";
+		}
+
+
+	/** @return the value of the first option with the given prefix, or null if there is none */
+	private String getOption(String prefix)
+		{
+			for (String option : options.split(" +")) if (option.startsWith(prefix) && option.length() > prefix.length()) return option.substring(prefix.length());
+			return null;
+		}
+
+
+	/** @return the port number as written in the environment and shown in the connection dialog, e.g. "+6697" for TLS */
+	public String getPortField() {return (secure ? "+" : "") + port; }
+
+
+	/**
+	  * Sets the port number and whether TLS is used from a port field like "6667" or "+6697".
+	  * TLS is also used for the port number TLS_PORT without '+'.
+	  * @throws NumberFormatException if the field is not a port number
+	  */
+	public void setPortField(String field)
+		{
+			field = field.trim();
+			port = Integer.parseInt(field.startsWith("+") ? field.substring(1) : field);
+			secure = field.startsWith("+") || port == TLS_PORT;
+		}
+
+
+	/** @return the pinned public keys of the server, e.g. "pin-sha256:...", empty if none are pinned */
+	public List<String> getPins()
+		{
+			ArrayList<String> pins = new ArrayList<String>();
+			for (String option : options.split(" +")) if (option.startsWith("pin-sha256:")) pins.add(option);
+			return pins;
+		}
+
+
+	/** @return the line of the server in the environment */
+	public String toEnvironmentLine()
+		{
+			return "server " + name + " " + address + " " + getPortField() + (options.isEmpty() ? "" : " " + options);
+		}
+
+
+	/**
+	  * Reads a server line of the environment. An invalid port number is taken as 6667.
+	  * @param line the line, starting with "server "
+	  * @return the server, or null if the line is corrupt
+	  */
+	public static IRCServerItem parse(String line)
+		{
+			String[] fields = line.trim().split(" +", 5);
+			if (fields.length < 3 || !fields[0].equals("server")) return null;
+			IRCServerItem item = new IRCServerItem(fields[1], fields[2], 6667);
+			if (fields.length > 3)
+				{
+					try {item.setPortField(fields[3]); }
+					catch (NumberFormatException ignore) {}
+				}
+			if (fields.length > 4) item.options = fields[4].trim();
+			return item;
+		}
+
+
+	/**
+	  * @param env the environment
+	  * @return the servers of the environment, in the order of their lines
+	  */
+	public static List<IRCServerItem> fromEnvironment(NovaEnvironment env)
+		{
+			ArrayList<IRCServerItem> items = new ArrayList<IRCServerItem>();
+			for (String line : env.getAllTagLines("server "))
+				{
+					IRCServerItem item = parse(line);
+					if (item != null) items.add(item);
+				}
+			return items;
+		}
+
+
+	/**
+	  * @param env the environment
+	  * @param address the address of a server
+	  * @return the first server of the environment with the given address, or null if there is none
+	  */
+	public static IRCServerItem find(NovaEnvironment env, String address)
+		{
+			for (IRCServerItem item : fromEnvironment(env)) if (item.address.equalsIgnoreCase(address)) return item;
+			return null;
+		}
 }
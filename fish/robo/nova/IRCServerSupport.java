@@ -0,0 +1,136 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.*;
+
+/**
+  * The features that a server announces with ISUPPORT (numeric reply 005) after registration,
+  * e.g. "CASEMAPPING=rfc1459", "PREFIX=(ov)@+" or "CHANTYPES=#&".
+  * Features that have not been announced have the defaults of RFC 1459.
+  * @author Kai Berk Oezer
+  */
+public class IRCServerSupport
+{
+	/** the announced tokens, by upper case name; tokens without value map to the empty String */
+	private final HashMap<String,String> tokens = new HashMap<String,String>();
+	private volatile IRCCaseMapping caseMapping = IRCCaseMapping.RFC1459;
+	private volatile String prefixModes = "ov";
+	private volatile String prefixes = "@+";
+
+
+	/**
+	  * Reads the tokens of a 005 reply. The first parameter (the nickname) and the trailing text are skipped.
+	  * @param message the 005 reply
+	  */
+	public synchronized void parse(IRCMessage message)
+		{
+			int count = message.getParamCount();
+			if (message.hasTrailing()) --count;
+			for (int i = 1; i < count; ++i)
+				{
+					String token = message.getParam(i);
+					if (token.length() == 0) continue;
+					if (token.charAt(0) == '-')
+						{
+							tokens.remove(token.substring(1).toUpperCase(Locale.ROOT));
+							continue;
+						}
+					int eq = token.indexOf('=');
+					if (eq < 0) tokens.put(token.toUpperCase(Locale.ROOT), "");
+					else tokens.put(token.substring(0, eq).toUpperCase(Locale.ROOT), token.substring(eq + 1));
+				}
+			caseMapping = IRCCaseMapping.forName(tokens.get("CASEMAPPING"));
+			String prefix = tokens.get("PREFIX");
+			int close = (prefix == null) ? -1 : prefix.indexOf(')');
+			if (close > 0 && prefix.charAt(0) == '(' && prefix.length() - close - 1 == close - 1)
+				{
+					prefixModes = prefix.substring(1, close);
+					prefixes = prefix.substring(close + 1);
+				}
+		}
+
+
+	/** Forgets all tokens. Called when a new connection is made. */
+	public synchronized void clear()
+		{
+			tokens.clear();
+			caseMapping = IRCCaseMapping.RFC1459;
+			prefixModes = "ov";
+			prefixes = "@+";
+		}
+
+
+	/**
+	  * @param name the name of the token, e.g. "NETWORK"
+	  * @return the value of the token, the empty String for tokens without value, or null if the token has not been announced
+	  */
+	public synchronized String get(String name) {return tokens.get(name.toUpperCase(Locale.ROOT)); }
+
+	/**
+	  * Tells whether a channel mode has a parameter in a MODE line, by the tokens CHANMODES and PREFIX.
+	  * Without CHANMODES, the channel modes of RFC 2811 are assumed.
+	  * @param mode the mode letter, e.g. 'k'
+	  * @param adding true if the mode is set, false if it is removed
+	  */
+	public synchronized boolean hasModeParam(char mode, boolean adding)
+		{
+			if (prefixModes.indexOf(mode) != -1) return true;
+			String chanmodes = tokens.get("CHANMODES");
+			String[] types = ((chanmodes == null) ? "beI,k,l,imnpst" : chanmodes).split(",", -1);
+			// type A (lists) and B (e.g. the key) always have a parameter, type C (e.g. the limit) only when set
+			if (types.length > 0 && types[0].indexOf(mode) != -1) return true;
+			if (types.length > 1 && types[1].indexOf(mode) != -1) return true;
+			return adding && types.length > 2 && types[2].indexOf(mode) != -1;
+		}
+
+	/**
+	  * Reads the maximum number of targets of a command from TARGMAX, e.g. "TARGMAX=PRIVMSG:4,JOIN:",
+	  * or from MAXTARGETS if TARGMAX does not list the command.
+	  * @param command the command, e.g. "JOIN"
+	  * @return the maximum number of targets, 0 if there is no limit
+	  */
+	public synchronized int getMaxTargets(String command)
+		{
+			String value = null;
+			String targmax = tokens.get("TARGMAX");
+			if (targmax != null)
+				{
+					for (String entry : targmax.split(","))
+						{
+							int colon = entry.indexOf(':');
+							if (colon > 0 && entry.substring(0, colon).equalsIgnoreCase(command)) value = entry.substring(colon + 1);
+						}
+				}
+			if (value == null) value = tokens.get("MAXTARGETS");
+			try {return (value == null || value.length() == 0) ? 0 : Math.max(0, Integer.parseInt(value)); }
+			catch (NumberFormatException nfe) {return 0; }
+		}
+
+	/** @return the case mapping of nicknames and channel names */
+	public IRCCaseMapping getCaseMapping() {return caseMapping; }
+
+	/** @return the channel modes that give nickname prefixes, highest rank first, e.g. "ov" */
+	public String getPrefixModes() {return prefixModes; }
+
+	/** @return the nickname prefixes, in the order of getPrefixModes(), e.g. "@+" */
+	public String getPrefixes() {return prefixes; }
+}
@@ -82,12 +82,26 @@ public class NovaEnvironment
 					lines.add(" ");
 					lines.add("[dcc]");
 					lines.add("packet-size 1024");
+					lines.add("send-window 4194304");
+					lines.add("ack-every 0");
+					lines.add("max-transfers 3");
+					lines.add("bandwidth 0 0 0");
+					lines.add(" ");
+					lines.add("[server connection]");
+					lines.add("flood-control 5 2000");
+					lines.add("reconnect 2000 300000");
+					lines.add("keepalive 30000 90000");
+					lines.add(" ");
+					lines.add("[scrollback]");
+					lines.add("scrollback-channel 5000 lines");
+					lines.add("scrollback-status 2000 lines");
+					lines.add("scrollback-chat 2000 lines");
 					lines.add(" ");
 					lines.add("[favorite channels]");
 					lines.add("favorites <empty>");
 					lines.add(" ");
 					lines.add("[known IRC servers]");
-					lines.add("server TR-net-EU-TR-Ankara irc.dominet.com.tr 6667");
+					lines.add("server TR-net-EU-TR-Ankara irc.dominet.com.tr 6667 network=TR-net");
 				}
 			refreshColors();
 		}
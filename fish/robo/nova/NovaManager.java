@@ -21,6 +21,7 @@
 package fish.robo.nova;
 
 import java.util.*;
+import java.util.concurrent.*;
 import fish.robo.nova.netlinks.*;
 import fish.robo.nova.guis.*;
 import javax.swing.event.*;
@@ -29,28 +30,67 @@ import javax.swing.event.*;
   * Manages the whole IRC client environment.
   * Contains numerous methods which serve other classes of Nova.
   * Backbone class of the whole program.
+  * Each NovaManager is one session: a main window with one server connection and its own channels,
+  * private chats and nickname. Any number of sessions can run in one process ("New Nova" in the menu).
+  * They share the environment, the I/O thread of the connections, the text styles and the identd server.
   * @author Kai Berk Oezer
   * @version June 1999
   */
 public class NovaManager implements ChangeListener
 {
-  private static int instanceCounter = 0;
+  /** all sessions of this process */
+  private static final List<NovaManager> sessions = new CopyOnWriteArrayList<NovaManager>();
+  /** the identd server, shared by all sessions */
+  private static NovaIdentd idServer = null;
+  /** numbers the sessions for the names of their metrics */
+  private static final java.util.concurrent.atomic.AtomicInteger sessionCounter = new java.util.concurrent.atomic.AtomicInteger();
+  /** the start of the names of the metrics of this session, e.g. "session1." */
+  private final String metricsPrefix = "session" + sessionCounter.incrementAndGet() + ".";
   private NovaEnvironment environment;
   private NovaInterface mainScreen;
   private NovaLinker netLink;
-  private NovaIdentd idServer;
-  private Thread netThread;
-  private Vector<ChannelFrame> chatChannels; // list of public chat channels
-  private Vector<OneToOneChatFrame> privateChats; // list of one-to-one chat boxes
+  private IRCNameMap<ChannelFrame> chatChannels; // public chat channels by name, owned by the inbound executor
+  private IRCNameMap<OneToOneChatFrame> privateChats; // one-to-one chat boxes by nickname of the partner, owned by the inbound executor
   private Vector<NicknameListener> nicknameListeners; // list of components to be notified of nick changes
 
-  private boolean connected = false,
-                    case_sensitive_filter = false,
-                    debugging = false;
+  /** the features announced by the server in ISUPPORT (005) */
+  private IRCServerSupport serverSupport = new IRCServerSupport();
+
+  /** the IRCv3 capabilities negotiated with the server */
+  private IRCCapabilities capabilities = new IRCCapabilities(this::sendMessage);
+  /** logs in to the account of the user during the capability negotiation */
+  private IRCSasl sasl;
+  /** the open batches of messages by reference tag, owned by the inbound executor */
+  private HashMap<String,IRCBatch> batches = new HashMap<String,IRCBatch>();
+
+  /**
+    * processes the incoming lines of the current connection one after the other;
+    * written by the EDT and the reconnection timer under inboundLock, read by any thread
+    */
+  private volatile ExecutorService inbound;
+  private final Object inboundLock = new Object();
+
+  /** the longest line that a client may send, without CRLF */
+  private static final int MAX_LINE_BYTES = IRCCharsets.MAX_LINE_BYTES;
+
+  /** decides when and to which server a broken connection is made again, null before the first connection */
+  private IRCReconnector reconnector = null;
+  /** cancels the pending reconnection attempt, null if none is pending */
+  private volatile Runnable reconnectCancel = null;
+
+  /** true after the end of the MOTD of the current connection, which finishes the registration */
+  private volatile boolean registered = false;
+  /** false after the user disconnected, true while connected or reconnecting */
+  private volatile boolean connected = false;
+  private boolean case_sensitive_filter = false;
+  private volatile boolean debugging = false;
 
   private ChannelListFrame theList;
   private String filter, nickname;
 
+  /** maps incoming commands and numeric replies to the methods that process them */
+  private IRCCommandTable commands = new IRCCommandTable();
+
 
   /** Instantiates and links the main components of the client. */
   public NovaManager(String environment_file_name)
@@ -62,23 +102,32 @@ public class NovaManager implements ChangeListener
   /** Instantiates and links the main components of the client. */
   public NovaManager(NovaEnvironment env)
     {
-      instanceCounter++;
+      sessions.add(this);
       environment = env;
 
-      new NovaTextStyles();
+      NovaTextStyles.initialize();
       mainScreen = new NovaInterface(this);
       mainScreen.setVisible(true);
       displayMessage(" ", NovaTextStyles.getMicroIcon2());
       displayMessage(" Java environment: " + System.getProperty("java.vendor") + " version " + System.getProperty("java.version") + "\n", NovaTextStyles.getServerStyle());
 
       netLink = new NovaLinker(this);
+      registerMetrics();
 
-      chatChannels = new Vector<ChannelFrame>();
-      privateChats = new Vector<OneToOneChatFrame>();
+      chatChannels = new IRCNameMap<ChannelFrame>();
+      privateChats = new IRCNameMap<OneToOneChatFrame>();
       nicknameListeners = new Vector<NicknameListener>();
+      registerCommandHandlers();
+      registerCapabilities();
 
-      idServer = new NovaIdentd(this);
-      idServer.start();
+      synchronized (NovaManager.class)
+        {
+          if (idServer == null)
+            {
+              idServer = new NovaIdentd(this);
+              idServer.start();
+            }
+        }
 
       nickname = environment.getFirstTagLine("user ").substring(5);
       nickname = nickname.substring(0, nickname.indexOf(" "));
@@ -206,8 +255,11 @@ public class NovaManager implements ChangeListener
 	  */
 	public void addChatChannel(ChannelFrame newChatChannel)
 		{
-			chatChannels.add(newChatChannel);
-      nicknameListeners.add(newChatChannel);
+			runInbound(() -> {
+					newChatChannel.applyServerSupport(serverSupport);
+					chatChannels.put(newChatChannel.getChannelName(), newChatChannel);
+					nicknameListeners.add(newChatChannel);
+				});
 			mainScreen.addToInterface(newChatChannel);
 			newChatChannel.appendMessage(" ", NovaTextStyles.getMicroIcon2());
 			newChatChannel.appendMessage(" Waiting for incoming messages...", NovaTextStyles.getServerStyle());
@@ -220,22 +272,19 @@ public class NovaManager implements ChangeListener
 	  */
 	public void removeChatChannel(ChannelFrame deadChatChannel)
       {
-        chatChannels.remove(deadChatChannel);
-        nicknameListeners.remove(deadChatChannel);
+        runInbound(() -> {chatChannels.remove(deadChatChannel.getChannelName(), deadChatChannel); nicknameListeners.remove(deadChatChannel); });
       }
 
 
 	public void addPrivateChat(OneToOneChatFrame newChat)
       {
-        privateChats.add(newChat);
-        nicknameListeners.add(newChat);
+        runInbound(() -> {privateChats.put(newChat.getNickname(), newChat); nicknameListeners.add(newChat); });
       }
 
 
 	public void removePrivateChat(OneToOneChatFrame deadChat)
       {
-        privateChats.remove(deadChat);
-        nicknameListeners.remove(deadChat);
+        runInbound(() -> {privateChats.remove(deadChat.getNickname(), deadChat); nicknameListeners.remove(deadChat); });
       }
 
 
@@ -249,13 +298,73 @@ public class NovaManager implements ChangeListener
     */
   public void connectToServer(String address, int port, String password, String nick, String realname)
     {
-      netLink.setAddress(address);
-      netLink.setPort(port);
+      connectToServer(address, port, port == IRCServerItem.TLS_PORT, password, nick, realname);
+    }
+
+
+  /**
+    * Connects to an IRC server and logs in.
+    * @param address the IP address of the IRC server
+    * @param port the port number of the IRC server
+    * @param secure true to connect with TLS
+    * @param password the password (if used) for the nickname
+    * @param nick the nickname of the user
+    * @param realname the real name of the user
+    */
+  public void connectToServer(String address, int port, boolean secure, String password, String nick, String realname)
+    {
+      cancelReconnect();
       netLink.setPassword(password);
       netLink.setNickname(nick);
       netLink.setRealname(realname);
-      netThread = new Thread(netLink);
-      netThread.start();
+      reconnector = IRCReconnector.fromEnvironment(environment, address, port, secure);
+      shutDownInbound();
+      openConnection(address, port, secure);
+    }
+
+
+  /**
+    * Connects to a server with the login data that was set by connectToServer().
+    * The inbound executor of a broken connection is kept, so the open windows stay in order.
+    * The pinned keys and the client certificate of a TLS server are taken from its server entry in the environment.
+    */
+  private void openConnection(String address, int port, boolean secure)
+    {
+      netLink.setAddress(address);
+      netLink.setPort(port);
+      IRCServerItem entry = IRCServerItem.find(environment, address);
+      if (entry != null) netLink.setSecure(secure, entry.getPins(), entry.getClientCertificate(), entry.getClientCertificatePassword());
+      else netLink.setSecure(secure, Collections.<String>emptyList(), null, "");
+      setFloodControl();
+      setKeepAlive();
+      netLink.setCharsets(IRCCharsets.fromEnvironment(environment, address));
+      synchronized (inboundLock)
+        {
+          ExecutorService previous = inbound;
+          if (previous == null || previous.isShutdown())
+            {
+              ExecutorService next = Executors.newSingleThreadExecutor(task -> {
+                  Thread t = new Thread(task, "Nova inbound " + address);
+                  t.setDaemon(true);
+                  return t;
+                });
+              // the old executor finishes its lines before the new one starts, so the lists never have two owners
+              if (previous != null) next.execute(() -> {
+                  try {previous.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+                  catch (InterruptedException ie) {Thread.currentThread().interrupt(); }
+                });
+              inbound = next;
+            }
+        }
+      runInbound(() -> {
+          serverSupport.clear();
+          capabilities.reset();
+          sasl.configure(environment, address, secure && entry != null && entry.getClientCertificate() != null);
+          batches.clear();
+          chatChannels.setCaseMapping(serverSupport.getCaseMapping());
+          privateChats.setCaseMapping(serverSupport.getCaseMapping());
+        });
+      runInbound(netLink::connect);
       mainScreen.setTitle(Nova.title + " " + address);
       mainScreen.setConnected(true);
       connected = true;
@@ -270,16 +379,28 @@ public class NovaManager implements ChangeListener
 			displayMessage(" Disconnecting...", NovaTextStyles.getNovaStyle());
 			connected = false;
 			mainScreen.disableIRC();
-    		netLink.disconnect();
+			// while waiting for a reconnection attempt there is no connection to close
+			if (cancelReconnect()) hasDisconnectedFromServer();
+			else netLink.disconnect();
 		}
 
 
-  /** Used by the network link class to notify the manager that the network link has been closed. */
+  /**
+    * Used by the network link class to notify the manager that the network link has been closed.
+    * If the user did not disconnect, a new connection is made after a while and the windows are kept open.
+    * Otherwise the channel and private chat windows are closed.
+    */
   public void hasDisconnectedFromServer()
     {
-      int i;
-      for (i = 0; i < chatChannels.size(); ++i) ((ChannelFrame) chatChannels.elementAt(i)).shutDown();
-      for (i = 0; i < privateChats.size(); ++i) ((OneToOneChatFrame) privateChats.elementAt(i)).shutDown();
+      registered = false;
+      mainScreen.showLag("", null);
+      if (connected && reconnector != null && reconnector.isEnabled() && sessions.contains(this) && scheduleReconnect()) return;
+      // the windows remove themselves from the lists while shutting down, hence the copies
+      runInbound(() -> {
+          for (ChannelFrame channel : chatChannels.values()) channel.shutDown();
+          for (OneToOneChatFrame chat : privateChats.values()) chat.shutDown();
+        });
+      shutDownInbound();
       mainScreen.setTitle(Nova.title);
       mainScreen.setConnected(false);
       connected = false;
@@ -289,11 +410,202 @@ public class NovaManager implements ChangeListener
     }
 
 
+  /**
+    * Schedules the next attempt to connect, to the next server of the rotation, on the I/O thread.
+    * Tells the open channels that the connection was lost.
+    * @return false if the attempt could not be scheduled
+    */
+  private boolean scheduleReconnect()
+    {
+      long delay = reconnector.nextAttempt();
+      String address = reconnector.getAddress();
+      int port = reconnector.getPort();
+      boolean secure = reconnector.isSecure();
+      String note = " Connection lost. Reconnecting to " + address + " in " + ((delay + 500) / 1000) + " seconds (attempt " + reconnector.getAttempts() + ")...";
+      try
+        {
+          reconnectCancel = NovaSelector.getShared().schedule(() -> {
+              reconnectCancel = null;
+              if (connected) openConnection(address, port, secure);
+            }, delay);
+        }
+      catch (java.io.IOException ioe) {return false; }
+      runInbound(() -> {for (ChannelFrame channel : chatChannels.values()) channel.connectionLost(note); });
+      mainScreen.disableIRC();
+      mainScreen.setTitle(Nova.title + " " + address + " (reconnecting)");
+      displayNovaNote(note);
+      return true;
+    }
+
+
+  /**
+    * Cancels the pending reconnection attempt.
+    * @return true if an attempt was pending
+    */
+  private boolean cancelReconnect()
+    {
+      Runnable cancel = reconnectCancel;
+      reconnectCancel = null;
+      if (cancel == null) return false;
+      cancel.run();
+      return true;
+    }
+
+
+  /**
+    * Joins the channels whose windows are open, e.g. after a reconnection, with the keys of those that have one.
+    * The channels are joined with as few JOIN lines as the line length and the target limit (TARGMAX or MAXTARGETS) of the server allow.
+    */
+  private void rejoinChannels()
+    {
+      int maxTargets = serverSupport.getMaxTargets("JOIN");
+      // the keys of a JOIN line belong to its first channels, so the channels with a key go first
+      ArrayList<ChannelFrame> channels = new ArrayList<ChannelFrame>();
+      for (ChannelFrame channel : chatChannels.values()) if (channel.getKey() != null) channels.add(channel);
+      for (ChannelFrame channel : chatChannels.values()) if (channel.getKey() == null) channels.add(channel);
+      StringBuilder names = new StringBuilder(MAX_LINE_BYTES), keys = new StringBuilder();
+      int targets = 0, bytes = 0;
+      for (ChannelFrame channel : channels)
+        {
+          String name = channel.getChannelName(), key = channel.getKey();
+          // each channel adds a space or comma and its name, and a space or comma and its key
+          int more = 1 + name.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+          if (key != null) more += 1 + key.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+          if (targets > 0 && ((maxTargets > 0 && targets == maxTargets) || bytes + more > MAX_LINE_BYTES))
+            {
+              sendJoin(names, keys);
+              targets = 0;
+            }
+          if (targets == 0) bytes = 4;
+          else names.append(',');
+          names.append(name);
+          if (key != null) keys.append((keys.length() == 0) ? "" : ",").append(key);
+          bytes += more;
+          ++targets;
+        }
+      if (targets > 0) sendJoin(names, keys);
+    }
+
+
+  /** Sends "JOIN <channels> [<keys>]" and empties both lists. */
+  private void sendJoin(StringBuilder names, StringBuilder keys)
+    {
+      sendMessage("JOIN " + names + ((keys.length() == 0) ? "" : " " + keys));
+      names.setLength(0);
+      keys.setLength(0);
+    }
+
+
+  /**
+    * Reads the flood control of outgoing lines from the environment line "flood-control <burst> <milliseconds per line>".
+    * Without a valid line, 5 lines can be sent at once and one more every 2 seconds.
+    */
+  private void setFloodControl()
+    {
+      int burst = 5;
+      long interval = 2000;
+      String line = environment.getFirstTagLine("flood-control ");
+      if (line != null && line.startsWith("flood-control "))
+        {
+          StringTokenizer tokens = new StringTokenizer(line.substring(14));
+          try
+            {
+              burst = Integer.parseInt(tokens.nextToken());
+              interval = Long.parseLong(tokens.nextToken());
+            }
+          catch (RuntimeException re) {burst = 5; interval = 2000; }
+        }
+      netLink.setFloodControl(burst, interval);
+    }
+
+
+  /**
+    * Reads the keep-alive PINGs from the environment line "keepalive <milliseconds between PINGs> <milliseconds until dead>"
+    * or "keepalive off". Without a valid line, a PING is sent every 30 seconds and a connection is dead after 90 seconds without PONG.
+    */
+  private void setKeepAlive()
+    {
+      long interval = 30000, dead = 90000;
+      String line = environment.getFirstTagLine("keepalive ");
+      if (line != null && line.startsWith("keepalive "))
+        {
+          StringTokenizer tokens = new StringTokenizer(line.substring(10));
+          try
+            {
+              String value = tokens.nextToken();
+              if (value.equals("off")) interval = 0;
+              else
+                {
+                  interval = Long.parseLong(value);
+                  dead = Long.parseLong(tokens.nextToken());
+                }
+            }
+          catch (RuntimeException re) {interval = 30000; dead = 90000; }
+        }
+      netLink.setKeepAlive(interval, dead);
+    }
+
+
+  /**
+    * Called for PONG replies. A reply to the keep-alive PING updates the lag in the status bar,
+    * other replies are shown like unhandled messages.
+    * @param message the incoming message from the IRC server
+    */
+  private void pongReceived(IRCMessage message)
+    {
+      if (!netLink.pongReceived(message.getLastParam()))
+        {
+          displayUnhandled(message);
+          return;
+        }
+      LatencyHistogram lags = netLink.getLagHistogram();
+      mainScreen.showLag("lag " + toMillis(netLink.getLag()) + " ms", "lag of " + lags.getCount() + " PINGs: median " + toMillis(lags.getPercentile(50))
+          + " ms, 90% " + toMillis(lags.getPercentile(90)) + " ms, 99% " + toMillis(lags.getPercentile(99)) + " ms, max " + toMillis(lags.getMax()) + " ms");
+    }
+
+
+  /** @return microseconds rounded to milliseconds */
+  private static long toMillis(long micros) {return (micros + 500) / 1000; }
+
+
+  /** Registers the measurements of this session with NovaMetrics. */
+  private void registerMetrics()
+    {
+      LatencyHistogram lags = netLink.getLagHistogram();
+      IRCSendQueue queue = netLink.getSendQueue();
+      NovaMetrics.register(metricsPrefix + "lag.current_us", netLink::getLag);
+      NovaMetrics.register(metricsPrefix + "lag.count", lags::getCount);
+      NovaMetrics.register(metricsPrefix + "lag.p50_us", () -> lags.getPercentile(50));
+      NovaMetrics.register(metricsPrefix + "lag.p90_us", () -> lags.getPercentile(90));
+      NovaMetrics.register(metricsPrefix + "lag.p99_us", () -> lags.getPercentile(99));
+      NovaMetrics.register(metricsPrefix + "lag.max_us", lags::getMax);
+      NovaMetrics.register(metricsPrefix + "sendqueue.depth", queue::getDepth);
+      NovaMetrics.register(metricsPrefix + "sendqueue.sent", queue::getSentCount);
+      NovaMetrics.register(metricsPrefix + "sendqueue.avg_wait_us", () -> (long) (queue.getAverageWaitMillis() * 1000));
+      NovaMetrics.register(metricsPrefix + "sendqueue.max_wait_us", () -> (long) (queue.getMaxWaitMillis() * 1000));
+    }
+
+
+  /** Shows the measurements of all sessions on the main screen. Called by "Show Metrics" in the debugging menu. */
+  public void showMetrics()
+    {
+      displayNovaNote(" Metrics of this process:");
+      displayMessage("\n" + NovaMetrics.format(), NovaTextStyles.getDebugStyle());
+    }
+
+
   /** Used by the network link class to notify the manager that the network link has been set up. */
   private void connectionCompleted()
     {
       displayMessage("\nEND of MESSAGE OF THE DAY\n\n");
+      // a MOTD asked for with /MOTD ends the same way, but the connection is set up only once
+      if (registered) return;
+      registered = true;
+      mainScreen.setTitle(Nova.title + " " + netLink.getAddress());
       mainScreen.enableIRC();
+      if (reconnector != null) reconnector.reset();
+      netLink.startKeepAlive();
+      rejoinChannels();
       if (IRCProtocolDroid.getSecond(environment.getFirstTagLine("invisible_on_connect ")).equals("true"))
         {
           String myNick = environment.getFirstTagLine("user ");
@@ -303,46 +615,46 @@ public class NovaManager implements ChangeListener
     }
 
 
-  /** Closes the IRC connection, stops the identity server, and exits the Java runtime. */
+  /**
+    * Closes the IRC connection of this session.
+    * When the last session is closed, the identity server is stopped and the Java runtime exits.
+    */
   public void shutDown()
     {
+      cancelReconnect();
       if (connected) netLink.disconnect();
-      idServer.cease();
+      sessions.remove(this);
+      NovaMetrics.unregister(metricsPrefix);
       environment.updateEnvironment();
-      instanceCounter--;
-      if (instanceCounter == 0) System.exit(0);
+      if (sessions.isEmpty())
+        {
+          idServer.cease();
+          System.exit(0);
+        }
     }
 
 
 	/**
 	  * Used by other methods of this class to find a ChannelFrame object with the given channel name.
-	  * In IRC, channel names are case-insensitive.
+	  * In IRC, channel names are case-insensitive, according to the case mapping of the server.
 	  * @param channelName the name of the channel, e.g. "#hottub"
 	  * @return the ChannelFrame object representing that channel or null if the channel was not found
 	  */
-	private final ChannelFrame findChannel(String channelName)
-		{
-			ChannelFrame temp;
-			for (int i = 0; i < chatChannels.size(); ++i)
-				{
-					temp = (ChannelFrame) chatChannels.elementAt(i);
-					if (channelName.equalsIgnoreCase(temp.getChannelName())) return temp;
-				}
-			return null;
-		}
+	private final ChannelFrame findChannel(String channelName) {return chatChannels.get(channelName); }
 
 
 	/**
 	  * Called by method translate() when a message coming from a channel is to be shown.
 	  * Creates a private chat window if the message is not directed to any registered channel.
 	  * @param incoming the incoming message from the IRC server
+	  * @param message the text of the message, with CTCP parts already removed
 	  */
-	private void relay(String incoming)
+	private void relay(IRCMessage incoming, String message)
 		{
-			String senderNick = incoming.substring(1, incoming.indexOf("!"));
-			String message = IRCProtocolDroid.getRest(incoming, 4).substring(1);
-			if (message == null) return;
-			ChannelFrame temp = findChannel(IRCProtocolDroid.getNth(incoming, 3));
+			String senderNick = incoming.getNick();
+			if (message == null || senderNick == null) return;
+			String target = incoming.getParam(0);
+			ChannelFrame temp = findChannel(target);
 			// check channels
 			if (temp != null)
 				{
@@ -370,20 +682,16 @@ public class NovaManager implements ChangeListener
 				{
 					String the_nick = environment.getFirstTagLine("user ");
 					the_nick = IRCProtocolDroid.getSecond(the_nick);
-					if (!the_nick.equals(IRCProtocolDroid.getNth(incoming, 3))) return;
-					OneToOneChatFrame tmp = null;
-					for (int j = 0; j < privateChats.size(); ++j)
+					if (!serverSupport.getCaseMapping().equals(the_nick, target)) return;
+					OneToOneChatFrame tmp = privateChats.get(senderNick);
+					if (tmp != null)
 						{
-							tmp = (OneToOneChatFrame) privateChats.elementAt(j);
-							if (senderNick.equals(tmp.getNickname()))
-								{
-									tmp.appendMessage("<" + senderNick + "> " + message);
-									return;
-								}
+							tmp.appendMessage("<" + senderNick + "> " + message);
+							return;
 						}
 					// at this point no existing window has been found -> create new one
 					tmp = new OneToOneChatFrame(senderNick, this);
-					privateChats.addElement(tmp);
+					privateChats.put(senderNick, tmp);
 					tmp.appendMessage("<" + senderNick + "> " + message);
 				}
 		}
@@ -391,60 +699,64 @@ public class NovaManager implements ChangeListener
 
 	/**
 	  * Processes and shows an incoming notice on the main screen.
-	  * @param incoming the whole NOTICE line coming from the server
+	  * @param notice the NOTICE message coming from the server
 	  */
-	private void showNotice(String notice_line)
+	private void showNotice(IRCMessage notice)
 		{
-			String sender_nick = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(notice_line));
-			if (sender_nick == null || sender_nick.equals("")) displayMessage('\n' + IRCProtocolDroid.getRest(notice_line, 4).substring(1), NovaTextStyles.getServerStyle());
-			else displayMessage('\n' + sender_nick + ": " + IRCProtocolDroid.getRest(notice_line, 4).substring(1), NovaTextStyles.getServerStyle());
+			String sender_nick = notice.getNick();
+			if (sender_nick == null || sender_nick.equals("")) displayMessage('\n' + notice.getLastParam(), NovaTextStyles.getServerStyle());
+			else displayMessage('\n' + sender_nick + ": " + notice.getLastParam(), NovaTextStyles.getServerStyle());
 		}
 
 
 	/**
 	  * displays an error message (resulting from a channel action) in the appropriate channel
-	  * @param error_message name of channel in which error occured followed by an error message
+	  * @param error the numeric error reply; the first parameter after the user's nick is the channel
 	  */
-	private void displayChannelError(String error_message)
+	private void displayChannelError(IRCMessage error)
 		{
-			ChannelFrame chan = findChannel(IRCProtocolDroid.getFirst(error_message));
+			ChannelFrame chan = findChannel(error.getParam(1));
 			if (chan != null)
 				{
 					chan.appendMessage("\n");
 					chan.appendMessage(" ", NovaTextStyles.getMicroIcon2());
-					chan.appendMessage(" ERROR: " + IRCProtocolDroid.getRest(error_message, 2).substring(1), NovaTextStyles.getServerStyle());
+					chan.appendMessage(" ERROR: " + error.getLastParam(), NovaTextStyles.getServerStyle());
 				}
 			else
 				{
 					displayMessage("\n");
 					displayMessage(" ",NovaTextStyles.getMicroIcon2());
-					displayMessage(" ERROR! " + error_message, NovaTextStyles.getServerStyle());
+					displayMessage(" ERROR! " + error.getParamsFrom(1), NovaTextStyles.getServerStyle());
 				}
 		}
 
 
 	/**
-	  * Called by method translate() when the people of a channel are to be shown.
+	  * Called for each line of a NAMES reply (353).
+	  * The channel is the parameter before the list of names.
+	  * The names are collected by the channel window and shown at the end of the reply.
 	  * @param incoming the incoming message from the IRC server
 	  */
-	private void setPeopleOfChannel(String incoming)
+	private void setPeopleOfChannel(IRCMessage incoming)
 		{
-			String peopleNames = IRCProtocolDroid.getRest(incoming, 7).trim();
-			ChannelFrame temp = findChannel(IRCProtocolDroid.getNth(incoming, 5));
-			if (temp != null)
-				{
-					String restTemp = peopleNames;
-					while (true)
-						{
-							// from now on peopleNames is used to store one name only
-							peopleNames = IRCProtocolDroid.getFirst(restTemp).trim();
-							restTemp = IRCProtocolDroid.getRest(restTemp, 2);
-							temp.addToPeople(peopleNames);
-							if (restTemp == null) break;
-						}
-					temp.checkOpStatus();
-				}
-			else displayMessage("\nPeople in channel " + IRCProtocolDroid.getNth(incoming, 5) + " are: " + peopleNames + "\n");
+			int count = incoming.getParamCount();
+			if (count < 2) return;
+			String channel = incoming.getParam(count - 2);
+			String peopleNames = incoming.getLastParam().trim();
+			ChannelFrame temp = findChannel(channel);
+			if (temp != null) temp.collectPeople(peopleNames);
+			else displayMessage("\nPeople in channel " + channel + " are: " + peopleNames + "\n");
+		}
+
+
+	/**
+	  * Called at the end of a NAMES reply (366). Shows the collected names in the channel window at once.
+	  * @param incoming the incoming message from the IRC server
+	  */
+	private void endOfPeopleOfChannel(IRCMessage incoming)
+		{
+			ChannelFrame temp = findChannel(incoming.getParam(1));
+			if (temp != null) temp.showCollectedPeople();
 		}
 
 
@@ -452,24 +764,25 @@ public class NovaManager implements ChangeListener
 	  * Called by method translate() when somebody joins a channel the user is on.
 	  * @param message the incoming message from the IRC server
 	  */
-	private void somebodyJoined(String message)
+	private void somebodyJoined(IRCMessage message)
 		{
 			// remember, a user can join multiple channels with one command
-			String current;
 			ChannelFrame temp;
-			String senderName = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
-			String allChannels = IRCProtocolDroid.getRest(message, 3).substring(1);
-
-			while (allChannels != null)
+			String senderName = message.getNick();
+			String allChannels = message.getParam(0);
+			if (allChannels == null) return;
+			int start = 0, end;
+			while (start < allChannels.length())
 				{
-					current = IRCProtocolDroid.getFirst(allChannels);
-					allChannels = IRCProtocolDroid.getRest(allChannels, 2);
-					temp = findChannel(current);
+					end = allChannels.indexOf(',', start);
+					if (end == -1) end = allChannels.length();
+					temp = findChannel(allChannels.substring(start, end));
 					if (temp != null)
 						{
 							temp.addToPeople(senderName);
 							temp.appendMessage('\n' + senderName + " has joined.", NovaTextStyles.getServerStyle());
 						}
+					start = end + 1;
 				}
 		}
 
@@ -478,11 +791,11 @@ public class NovaManager implements ChangeListener
 	  * Called by method translate() when somebody leaves a channel the user is on.
 	  * @param message the incoming message from the IRC server
 	  */
-	private void somebodyLeft(String message)
+	private void somebodyLeft(IRCMessage message)
 		{
 			// a user can only part from one channel with one command
-			String senderName = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
-			ChannelFrame tmp = findChannel(IRCProtocolDroid.getNth(message, 3));
+			String senderName = message.getNick();
+			ChannelFrame tmp = findChannel(message.getParam(0));
 			if (tmp != null)
 				{
 					tmp.removeFromPeople(senderName);
@@ -495,31 +808,117 @@ public class NovaManager implements ChangeListener
 	  * Called by method translate() when somebody, who is on the same channel the user is, quits IRC.
 	  * @param message the incoming message from the IRC server
 	  */
-	private void somebodyQuitted(String message)
+	private void somebodyQuitted(IRCMessage message)
 		{
 			// remove this person from all channels
-			String senderName = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
-			String reason = IRCProtocolDroid.getRest(message, 3).substring(1);
-			ChannelFrame tmp;
-			for (int i = 0; i < chatChannels.size(); ++i)
+			String senderName = message.getNick();
+			for (ChannelFrame tmp : chatChannels.values())
 				{
-					tmp = (ChannelFrame) chatChannels.elementAt(i);
 					if (tmp.removeFromPeople(senderName)) tmp.appendMessage('\n' + senderName + " has quit IRC.", NovaTextStyles.getServerStyle());
 				}
 		}
 
 
+	/**
+	  * Called for BATCH messages. "BATCH +<reference> <type> ..." opens a batch, whose messages translate() collects,
+	  * and "BATCH -<reference>" closes it. Netsplits and netjoins are applied with one update per channel,
+	  * the messages of other batches (e.g. chathistory) are processed one by one as if they had not been batched.
+	  * Nested batches are collected on their own and applied when they are closed.
+	  * @param message the incoming message from the IRC server
+	  */
+	private void batchReceived(IRCMessage message)
+		{
+			String reference = message.getParam(0);
+			if (reference == null || reference.length() < 2) return;
+			if (reference.charAt(0) == '+')
+				{
+					String type = message.getParam(1);
+					ArrayList<String> params = new ArrayList<String>();
+					for (int i = 2; i < message.getParamCount(); ++i) params.add(message.getParam(i));
+					batches.put(reference.substring(1), new IRCBatch(reference.substring(1), (type == null) ? "" : type, params));
+					return;
+				}
+			IRCBatch batch = batches.remove(reference.substring(1));
+			if (batch == null) return;
+			if (batch.isType("netsplit")) netsplit(batch);
+			else if (batch.isType("netjoin")) netjoin(batch);
+			else for (IRCMessage m : batch.getMessages()) commands.dispatch(m);
+		}
+
+
+	/**
+	  * Removes the people of a netsplit from all channels, with one update and one line per channel,
+	  * instead of one per person. Messages other than QUIT are processed as usual.
+	  * @param batch the closed netsplit batch, whose parameters are the two servers
+	  */
+	private void netsplit(IRCBatch batch)
+		{
+			ArrayList<String> nicks = new ArrayList<String>();
+			for (IRCMessage m : batch.getMessages())
+				{
+					String nick = m.getNick();
+					if (m.isCommand("QUIT") && nick != null) nicks.add(nick);
+					else commands.dispatch(m);
+				}
+			if (nicks.isEmpty()) return;
+			String servers = String.join(" ", batch.getParams());
+			for (ChannelFrame channel : chatChannels.values())
+				{
+					int quitted = channel.removeFromPeople(nicks);
+					if (quitted > 0) channel.appendMessage('\n' + quitted + ((quitted == 1) ? " user" : " users") + " quit: netsplit " + servers, NovaTextStyles.getServerStyle());
+				}
+		}
+
+
+	/**
+	  * Adds the people of a netjoin to their channels, with one update and one line per channel,
+	  * instead of one per person. Messages other than JOIN, e.g. the modes given back after the netjoin, are processed afterwards.
+	  * @param batch the closed netjoin batch, whose parameters are the two servers
+	  */
+	private void netjoin(IRCBatch batch)
+		{
+			LinkedHashMap<ChannelFrame,ArrayList<String>> joins = new LinkedHashMap<ChannelFrame,ArrayList<String>>();
+			ArrayList<IRCMessage> others = new ArrayList<IRCMessage>();
+			for (IRCMessage m : batch.getMessages())
+				{
+					String nick = m.getNick();
+					String allChannels = m.getParam(0);
+					if (!m.isCommand("JOIN") || nick == null || allChannels == null)
+						{
+							others.add(m);
+							continue;
+						}
+					for (String name : allChannels.split(","))
+						{
+							ChannelFrame channel = findChannel(name);
+							if (channel == null) continue;
+							ArrayList<String> nicks = joins.get(channel);
+							if (nicks == null) joins.put(channel, nicks = new ArrayList<String>());
+							nicks.add(nick);
+						}
+				}
+			String servers = String.join(" ", batch.getParams());
+			for (Map.Entry<ChannelFrame,ArrayList<String>> join : joins.entrySet())
+				{
+					int joined = join.getKey().addToPeople(join.getValue());
+					if (joined > 0) join.getKey().appendMessage('\n' + joined + ((joined == 1) ? " user" : " users") + " joined: netjoin " + servers, NovaTextStyles.getServerStyle());
+				}
+			for (IRCMessage m : others) commands.dispatch(m);
+		}
+
+
 	/**
 	  * Called by method translate() when the mode of a channel, which the user is on, changes.
 	  * @param message the incoming message from the IRC server
 	  */
-	private void setChannelMode(String message)
+	private void setChannelMode(IRCMessage message)
 		{
-			ChannelFrame temp = findChannel(IRCProtocolDroid.getNth(message, 3));
+			ChannelFrame temp = findChannel(message.getParam(0));
 			if (temp != null)
 				{
-					String senderName = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
-					String modeChange = IRCProtocolDroid.getRest(message, 4);
+					String senderName = message.getNick();
+					String modeChange = message.getParamsFrom(1);
+					if (modeChange == null) return;
 					temp.appendMessage('\n' + senderName + " changed mode to " + modeChange, NovaTextStyles.getServerStyle());
 
 					// check which mode has been changed
@@ -531,6 +930,28 @@ public class NovaManager implements ChangeListener
 
 					// if there is no support for that mode we may display a note on the channel screen
 					//else temp.appendMessage("This mode change is not recognized by Nova, i.e. no change of state will be reflected.");
+					trackChannelKey(temp, message);
+				}
+		}
+
+
+	/**
+	  * Keeps the key of a channel up to date with a MODE line, so that the channel can be rejoined after a reconnection.
+	  * @param channel the channel whose modes changed
+	  * @param message the MODE line, "MODE <channel> <modes> <parameters>"
+	  */
+	private void trackChannelKey(ChannelFrame channel, IRCMessage message)
+		{
+			String modes = message.getParam(1);
+			if (modes == null || modes.indexOf('k') == -1) return;
+			boolean adding = true;
+			int param = 2;
+			for (int i = 0; i < modes.length(); ++i)
+				{
+					char mode = modes.charAt(i);
+					if (mode == '+' || mode == '-') adding = (mode == '+');
+					else if (mode == 'k') channel.setKey(adding ? message.getParam(param++) : null);
+					else if (serverSupport.hasModeParam(mode, adding)) ++param;
 				}
 		}
 
@@ -538,18 +959,19 @@ public class NovaManager implements ChangeListener
 	/**
 	  * Called by method translate() when the topic of a channel, which the user is on, changes.
 	  * @param message the incoming message from the IRC server
+	  * @param first_time true for the topic reply (332) sent when joining, false for a TOPIC change
 	  */
-	private void setChannelTopic(String message, boolean first_time)
+	private void setChannelTopic(IRCMessage message, boolean first_time)
 		{
-			String newTopic = IRCProtocolDroid.getRest(message, first_time?5:4).substring(1);
-			ChannelFrame temp = findChannel(IRCProtocolDroid.getNth(message, first_time?4:3));
+			ChannelFrame temp = findChannel(message.getParam(first_time ? 1 : 0));
 			if (temp == null) return;
+			String newTopic = message.getLastParam();
 			String newTitle = temp.getTitle();
 			newTitle = newTitle.substring(0, newTitle.indexOf("topic: ") + 7) + newTopic;
 			temp.setTitle(newTitle);
 			if (first_time) return;
 			// re-using variable newTitle to inform user of the change
-			newTitle = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
+			newTitle = message.getNick();
 			temp.appendMessage('\n' + newTitle + " has changed the topic.", NovaTextStyles.getServerStyle());
 		}
 
@@ -558,14 +980,13 @@ public class NovaManager implements ChangeListener
 	  * Called by method translate() when somebody on the same channel as the user changes his/her nickname.
 	  * @param message the incoming message from the IRC server
 	  */
-	private void somebodyChangedNick(String message)
+	private void somebodyChangedNick(IRCMessage message)
 		{
-			String oldNick = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
-			String newNick = IRCProtocolDroid.getNth(message, 3).substring(1);
-			ChannelFrame tmp;
-			for (int i = 0; i < chatChannels.size(); ++i)
+			String oldNick = message.getNick();
+			String newNick = message.getParam(0);
+			if (oldNick == null || newNick == null) return;
+			for (ChannelFrame tmp : chatChannels.values())
 				{
-					tmp = (ChannelFrame) chatChannels.elementAt(i);
 					if(tmp.replacePerson(oldNick, newNick))
 						tmp.appendMessage('\n' + oldNick + " changed nickname to " + newNick, NovaTextStyles.getServerStyle());
 				}
@@ -577,13 +998,13 @@ public class NovaManager implements ChangeListener
 	  * This is also how the user is notified that he/she has been kicked from a channel.
 	  * @param message the incoming message from the IRC server
 	  */
-	private void somebodyKickedSomeone(String message)
+	private void somebodyKickedSomeone(IRCMessage message)
 		{
-			ChannelFrame tmp = findChannel(IRCProtocolDroid.getNth(message, 3));
+			ChannelFrame tmp = findChannel(message.getParam(0));
 			if (tmp != null)
 				{
-					String kicker = IRCProtocolDroid.extractNick(IRCProtocolDroid.getFirst(message));
-					String victim = IRCProtocolDroid.getNth(message, 4);
+					String kicker = message.getNick();
+					String victim = message.getParam(1);
 					tmp.removeFromPeople(victim);
 					tmp.appendMessage('\n' + kicker + " kicked " + victim, NovaTextStyles.getServerStyle());
 				}
@@ -596,10 +1017,11 @@ public class NovaManager implements ChangeListener
 	  * It detects some of the frequently used CTCP commands and pocesses them.
 	  * @param message the PRIVMSG message coming from the IRC server
 	  */
-	private void filterCTCP(String message)
+	private void filterCTCP(IRCMessage message)
 		{
 			// extract actual message
-			String temp = (IRCProtocolDroid.getRest(message, 4)).substring(1);
+			String temp = message.getLastParam();
+			if (temp == null) return;
 			// do low-level de-quoting with the tag '\020'
 			int pos = -1;
 			try
@@ -642,7 +1064,7 @@ public class NovaManager implements ChangeListener
 						}
 					catch (StringIndexOutOfBoundsException sioobe) {sioobe.printStackTrace(); /* CORRECTION NEEDED */ }
 					// extract sender's nickname
-					String nick = IRCProtocolDroid.extractNick(message);
+					String nick = message.getNick();
 					// check for mIRC's sound extension
 					if (ctcp.indexOf("SOUND ") == 0)
 						{
@@ -688,77 +1110,233 @@ public class NovaManager implements ChangeListener
 				}
 			// No CTCP commands left. Display rest of the de-coded message.
 			if (temp.trim().equals("")) return;
-			message = message.substring(0, message.indexOf(" :")) + " :" + temp;
-			relay(message);
+			relay(message, temp);
+		}
+
+
+	/**
+	  * Fills the command table with the handlers of incoming commands and numeric replies.
+	  * Called once by the constructor. Other components may add or replace handlers later via getCommandTable().
+	  */
+	private void registerCommandHandlers()
+		{
+			commands.register("PRIVMSG", this::filterCTCP);
+			commands.register("NOTICE", this::showNotice);
+			commands.register("JOIN", this::somebodyJoined);
+			commands.register("PART", this::somebodyLeft);
+			commands.register("MODE", this::setChannelMode);
+			commands.register("NICK", this::somebodyChangedNick);
+			commands.register("QUIT", this::somebodyQuitted);
+			commands.register("KICK", this::somebodyKickedSomeone);
+			commands.register("TOPIC", m -> setChannelTopic(m, false));
+			commands.register("PING", this::pingReceived);
+			commands.register("PONG", this::pongReceived);
+			commands.register("CAP", capabilities::handle);
+			commands.register("BATCH", this::batchReceived);
+			// TAGMSG carries only tags, e.g. typing notifications, which Nova does not show
+			commands.register("TAGMSG", m -> {});
+			commands.register("AUTHENTICATE", m -> sasl.authenticate(m));
+			commands.register(new int[] {900, 901, 902, 903, 904, 905, 906, 907, 908}, m -> sasl.reply(m));
+			// servers without capability negotiation reject CAP as an unknown command
+			commands.register(421, m -> {if (!m.paramEqualsIgnoreCase(1, "CAP")) displayUnhandled(m); });
+			commands.register(5, this::serverSupports);
+			commands.register(321, m -> {if (theList != null) theList.shutDown(); theList = new ChannelListFrame(this); });
+			commands.register(322, m -> {if (theList != null) addChannelToList(m.getParamsFrom(1)); });
+			commands.register(323, m -> {if (theList != null) {theList.complete(); theList = null; }});
+			commands.register(332, m -> setChannelTopic(m, true));
+			commands.register(353, this::setPeopleOfChannel);
+			commands.register(366, this::endOfPeopleOfChannel);
+			commands.register(372, m -> displayMessage("\n" + m.getLastParam()));
+			commands.register(375, m -> displayMessage("\nMESSAGE OF THE DAY\n"));
+			commands.register(new int[] {376, 422}, m -> connectionCompleted());
+			commands.register(433, m -> displayNovaNote("You're nickname is already used by somebody else. Choose a new one."));
+			commands.register(436, m -> displayNovaNote("Nickname collision with other server. Choose a new nickname."));
+			commands.register(442, this::notOnChannel);
+			commands.register(new int[] {467, 471, 473, 474, 475, 482}, this::displayChannelError);
+			// end-of-list replies carry no information
+			commands.register(new int[] {315, 318, 368, 369, 394}, m -> {});
+			commands.setFallback(this::displayUnhandled);
+		}
+
+
+	/**
+	  * Called for ISUPPORT (005) replies. Applies the case mapping and nickname prefixes of the server
+	  * to the open windows and shows the reply like other unhandled messages.
+	  * @param message the incoming message from the IRC server
+	  */
+	private void serverSupports(IRCMessage message)
+		{
+			serverSupport.parse(message);
+			chatChannels.setCaseMapping(serverSupport.getCaseMapping());
+			privateChats.setCaseMapping(serverSupport.getCaseMapping());
+			for (ChannelFrame channel : chatChannels.values()) channel.applyServerSupport(serverSupport);
+			displayUnhandled(message);
+		}
+
+
+	/** @return the features announced by the server of the current connection */
+	public IRCServerSupport getServerSupport() {return serverSupport; }
+
+
+	/**
+	  * Subscribes the features of Nova to the IRCv3 capabilities they use.
+	  * Called once by the constructor. Other components may subscribe later via getCapabilities().
+	  */
+	private void registerCapabilities()
+		{
+			IRCCapabilities.Listener note = (name, on) -> {
+					if (debugging) displayMessage("\nNOVADEBUG capability " + name + (on ? " enabled" : " disabled"), NovaTextStyles.getDebugStyle());
+				};
+			// the list of people keeps every prefix of a person, so NAMES replies with all prefixes need no extra handling
+			capabilities.want("multi-prefix", note);
+			// IRCMessage reads the tags of every line
+			capabilities.want("message-tags", note);
+			// netsplits and netjoins are applied as a whole, see batchReceived()
+			capabilities.want("batch", note);
+			// the credentials bypass sendMessage(), so they do not show up in debugging mode
+			sasl = new IRCSasl(capabilities, line -> netLink.sendOut(line), this::displayNovaNote, this::runInbound);
+		}
+
+
+	/** @return the IRCv3 capabilities of the current connection */
+	public IRCCapabilities getCapabilities() {return capabilities; }
+
+
+	/**
+	  * Shows a note of Nova, marked with the Nova icon, on the main screen.
+	  * @param note the text of the note
+	  */
+	private void displayNovaNote(String note)
+		{
+			displayMessage("\n");
+			displayMessage(" ", NovaTextStyles.getMicroIcon1());
+			displayMessage(note, NovaTextStyles.getNovaStyle());
+		}
+
+
+	/**
+	  * Called when the server replies that the user is not on a channel (442).
+	  * @param message the incoming message from the IRC server
+	  */
+	private void notOnChannel(IRCMessage message)
+		{
+			ChannelFrame dummy = findChannel(message.getParam(1));
+			if (dummy != null)
+				{
+					dummy.appendMessage("\n");
+					dummy.appendMessage(" ", NovaTextStyles.getMicroIcon1());
+					dummy.appendMessage("You're not on this channel anymore.", NovaTextStyles.getNovaStyle());
+				}
+		}
+
+
+	/**
+	  * Answers a PING of the server with its token. A PING without parameters, which some servers send
+	  * before the registration, is answered with the name of the server, or else an empty token.
+	  * @param message the incoming message from the IRC server
+	  */
+	private void pingReceived(IRCMessage message)
+		{
+			String token = message.getLastParam();
+			if (token == null) token = message.getPrefix();
+			sendMessage("PONG :" + ((token != null) ? token : ""));
+			displayMessage("\nPing - Pong");
+		}
+
+
+	/**
+	  * For now, all messages without a handler are shown on the main screen.
+	  * @param message the incoming message from the IRC server
+	  */
+	private void displayUnhandled(IRCMessage message)
+		{
+			// numeric replies are shown in shortened form
+			if (message.getNumeric() != -1)
+				{
+					String params = message.getParamsFrom(0);
+					displayMessage("\n" + ((params != null) ? params : message.getCommand()));
+				}
+			// non-numeric replies are shown as command and parameters, without the tags
+			else
+				{
+					String params = message.getParamsFrom(0);
+					displayMessage("\n" + message.getCommand() + ((params != null) ? " " + params : ""));
+				}
+		}
+
+
+	/** @return all sessions of this process, in the order they were opened */
+	public static List<NovaManager> getSessions() {return Collections.unmodifiableList(sessions); }
+
+
+	/** @return the table that maps incoming commands and numeric replies to their handlers */
+	public IRCCommandTable getCommandTable() {return commands; }
+
+
+	/** Lets the inbound executor finish the lines it has and stops it. openConnection() makes a new one. */
+	private void shutDownInbound()
+		{
+			synchronized (inboundLock)
+				{
+					if (inbound != null) inbound.shutdown();
+				}
+		}
+
+
+	/**
+	  * Runs a task on the inbound executor of the connection.
+	  * The channel and private chat lists are only touched by such tasks.
+	  * Without a running connection the task is run directly.
+	  * @param task the task to be run after all lines received so far
+	  */
+	private void runInbound(Runnable task)
+		{
+			ExecutorService executor = inbound;
+			if (executor != null)
+				{
+					try
+						{
+							executor.execute(task);
+							return;
+						}
+					catch (RejectedExecutionException ree) { /* connection closed, run directly */ }
+				}
+			task.run();
+		}
+
+
+	/**
+	  * Called by the network link for every line received from the server.
+	  * The line is queued on the inbound executor, so the reading thread never waits for message processing.
+	  * @param incoming the whole message coming from the IRC server
+	  */
+	public void receive(String incoming)
+		{
+			runInbound(() -> translate(incoming));
 		}
 
 
 	/**
 	  * This method processes incoming commands and messages.
-	  * Note: The if...else block is structured so that frequently used commands be checked first.
+	  * The line is parsed once into an IRCMessage, which is passed to the handler registered for its command.
+	  * Runs on the inbound executor of the connection.
 	  * @param incoming the whole message coming from the IRC server
 	  */
-	public synchronized void translate(String incoming)
+	private void translate(String incoming)
 		{
       if (debugging) displayMessage("\nNOVADEBUG<<< " + incoming, NovaTextStyles.getDebugStyle());
-			String cache = IRCProtocolDroid.getSecond(incoming).toLowerCase();
-			// translate incoming message into action
-			if (cache.equals("privmsg")) filterCTCP(incoming);
-			else if (cache.equals("notice")) showNotice(incoming);
-			else if (cache.equals("322")) {if (theList != null) addChannelToList(IRCProtocolDroid.getRest(incoming, 4)); }
-			else if (cache.equals("join")) somebodyJoined(incoming);
-			else if (cache.equals("part")) somebodyLeft(incoming);
-			else if (cache.equals("353")) setPeopleOfChannel(incoming);
-			else if (cache.equals("372")) displayMessage("\n" + IRCProtocolDroid.getRest(incoming, 4).substring(1));
-			else if (cache.equals("mode")) setChannelMode(incoming);
-			else if (cache.equals("nick")) somebodyChangedNick(incoming);
-			else if (cache.equals("321")) {if (theList != null) theList.shutDown(); theList = new ChannelListFrame(this); }
-      else if (cache.equals("323")) {if (theList != null) {theList.complete(); theList = null; }}
-			else if (cache.equals("quit")) somebodyQuitted(incoming);
-			else if (cache.equals("kick")) somebodyKickedSomeone(incoming);
-			else if (cache.equals("topic")) setChannelTopic(incoming, false);
-			else if (cache.equals("332")) setChannelTopic(incoming, true);
-			else if (incoming.toLowerCase().indexOf("ping") == 0) {sendMessage("PONG " + IRCProtocolDroid.getRest(incoming, 2)); displayMessage("\nPing - Pong");	}
-      else if (cache.equals("433"))
-        {
-          displayMessage("\n");
-			    displayMessage(" ", NovaTextStyles.getMicroIcon1());
-          displayMessage("You're nickname is already used by somebody else. Choose a new one.", NovaTextStyles.getNovaStyle());
-        }
-      else if (cache.equals("436"))
-        {
-          displayMessage("\n");
-			    displayMessage(" ", NovaTextStyles.getMicroIcon1());
-          displayMessage("Nickname collision with other server. Choose a new nickname.", NovaTextStyles.getNovaStyle());
-        }
-      else if (cache.equals("442"))
-        {
-          String dummyString = IRCProtocolDroid.getRest(incoming, 4);
-          dummyString = dummyString.substring(0, dummyString.indexOf(" "));
-          ChannelFrame dummy = findChannel(dummyString);
-          if (dummy != null)
-            {
-              dummy.appendMessage("\n");
-              dummy.appendMessage(" ", NovaTextStyles.getMicroIcon1());
-              dummy.appendMessage("You're not on this channel anymore.", NovaTextStyles.getNovaStyle());
-            }
-        }
-			else if (cache.equals("467") || cache.equals("471") || cache.equals("473") || cache.equals("474") || cache.equals("475") || cache.equals("482")) displayChannelError(IRCProtocolDroid.getRest(incoming, 4));
-			else if (cache.equals("375")) displayMessage("\nMESSAGE OF THE DAY\n");
-			else if (cache.equals("376")) connectionCompleted();
-			else if (cache.equals("394") || cache.equals("368") || cache.equals("366") || cache.equals("318") || cache.equals("369") || cache.equals("315")) return;
-			// for now, all other messages are shown on main screen
-			else
+			IRCMessage message = new IRCMessage(incoming);
+			if (!batches.isEmpty() && !message.isCommand("BATCH"))
 				{
-					try
+					String reference = message.getTag("batch");
+					IRCBatch batch = (reference == null) ? null : batches.get(reference);
+					if (batch != null)
 						{
-							Integer.parseInt(cache);
-							// numeric replies are shown in shortened form
-							displayMessage("\n" + IRCProtocolDroid.getRest(incoming, 3));
+							batch.add(message);
+							return;
 						}
-					// non-numeric replies are shown in original form
-					catch (NumberFormatException nfe) {displayMessage("\n" + incoming); }
 				}
+			commands.dispatch(message);
 		}
 
 
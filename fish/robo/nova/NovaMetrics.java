@@ -0,0 +1,76 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+  * The measurements of all sessions of this process, e.g. the lag of a connection or the depth of its send queue.
+  * Each measurement is a named gauge that is read when the metrics are shown, so recording costs nothing extra.
+  * Names are dot-separated. Those of a session start with the session, e.g. "session1.lag.p99_us",
+  * and those shared by all sessions start with their subsystem, e.g. "dcc.active".
+  * The metrics are shown by "Show Metrics" in the debugging menu.
+  * @author Kai Berk Oezer
+  */
+public final class NovaMetrics
+{
+	private static final ConcurrentSkipListMap<String,LongSupplier> gauges = new ConcurrentSkipListMap<String,LongSupplier>();
+
+	private NovaMetrics() {}
+
+
+	/**
+	  * Adds a gauge or replaces the gauge with the same name.
+	  * @param name the name of the measurement
+	  * @param gauge reads the current value
+	  */
+	public static void register(String name, LongSupplier gauge) {gauges.put(name, gauge); }
+
+
+	/**
+	  * Removes all gauges whose names start with the given prefix, e.g. those of a closed session.
+	  * @param prefix the start of the names, e.g. "session1."
+	  */
+	public static void unregister(String prefix)
+		{
+			gauges.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+		}
+
+
+	/** @return the current values of all gauges, sorted by name */
+	public static SortedMap<String,Long> snapshot()
+		{
+			TreeMap<String,Long> values = new TreeMap<String,Long>();
+			for (Map.Entry<String,LongSupplier> gauge : gauges.entrySet()) values.put(gauge.getKey(), gauge.getValue().getAsLong());
+			return values;
+		}
+
+
+	/** @return the current values of all gauges, one "name value" line each */
+	public static String format()
+		{
+			StringBuilder text = new StringBuilder();
+			for (Map.Entry<String,Long> value : snapshot().entrySet()) text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+			return text.toString();
+		}
+}
@@ -40,6 +40,8 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 {
 	/** the name of this channel */
 	private String thisChannel;
+	/** the key (mode +k) of this channel, null if it has none; used to join and rejoin the channel */
+	private volatile String key;
 
 	/** nickname of the user */
 	private String nick;
@@ -47,8 +49,10 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 	/** Highlighted nickname. Used when the user wants to concentrate on the messages of a specific chat partner */
 	private String highlightedNick = "";
 
-	/** The vector which stores the list of nicknames displayed at the right-hand-side */
-	private DefaultListModel<String> the_people = new DefaultListModel<String>();
+	/** The sorted list of nicknames displayed at the right-hand-side */
+	private ChannelMemberList the_people = new ChannelMemberList();
+	/** names of a NAMES reply (353) that is not complete yet, null if there is none */
+	private ArrayList<String> pendingPeople = null;
 
 	// GUI components
 	private JTextPane mainArea;
@@ -70,8 +74,8 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 	/** used to call TextLineInputDialog boxes */
 	final static Class[] string_class = {"".getClass() };
 	final static Font channelFont = new Font("SansSerif", Font.PLAIN, 14);
-	final static char ctrlC = 3; // the 'End of Transmission' character (shown as ^C on Unix)
-	private DefaultStyledDocument doc;
+	/** queues the messages for the document of the main text area */
+	private TextAppendQueue appendQueue;
 	static final ImageIcon bigChannelIcon = new ImageIcon("fish/robo/nova/images/channel_big.gif");
 	static final ImageIcon smallChannelIcon = new ImageIcon("fish/robo/nova/images/channel_small.gif");
 
@@ -81,11 +85,25 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 	  * @param manager a reference to the IRC environment manager
 	  */
 	public ChannelFrame(String label, NovaManager manager)
+		{
+			this(label, null, manager);
+		}
+
+
+	/**
+	  * @param label the title of this window; includes the name and topic of the channel.
+	  * @param key the key of the channel, null if it has none
+	  * @param manager a reference to the IRC environment manager
+	  */
+	public ChannelFrame(String label, String key, NovaManager manager)
 		{
 			super(label, true, true, true, true);
+			this.key = key;
 			if (label != null) thisChannel = IRCProtocolDroid.getSecond(label);
 			this.manager = manager;
-			mainArea = new JTextPane(doc = new DefaultStyledDocument()); // Important. This line has to be in the constructor and not in run().
+			mainArea = new JTextPane(); // Important. This line has to be in the constructor and not in run().
+			appendQueue = new TextAppendQueue(mainArea);
+			appendQueue.setScrollback(ScrollbackLimit.fromEnvironment(manager.getEnvironment(), ScrollbackLimit.CHANNEL, 5000));
 			manager.addChatChannel(this);
 			addInternalFrameListener(this);
 			addComponentListener(this);
@@ -181,13 +199,13 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 			else
 				try
 					{
-						if (command.equals("whois")) manager.sendMessage("WHOIS " + strip(the_people.elementAt(people.getSelectedIndex())));
+						if (command.equals("whois")) manager.sendMessage("WHOIS " + the_people.getNick(people.getSelectedIndex()));
 						else if (command.equals("invite")) new TextLineInputDialog(manager.getInterface(), "invite a person", "nickname:", "Invite", getClass().getMethod("inviteProcess", string_class));
-						else if (command.equals("kick")) manager.sendMessage("KICK " + thisChannel + " " + strip(the_people.elementAt(people.getSelectedIndex())) + " : ");
+						else if (command.equals("kick")) manager.sendMessage("KICK " + thisChannel + " " + the_people.getNick(people.getSelectedIndex()) + " : ");
 						else if (command.equals("mode")) new TextLineInputDialog(manager.getInterface(), "set channel mode", "mode:", "Set", getClass().getMethod("modeProcess", string_class));
 						else if (command.equals("topic")) new TextLineInputDialog(manager.getInterface(), "change topic", "new topic:", "Accept", getClass().getMethod("topicProcess", string_class));
-						else if (command.equals("private")) manager.addPrivateChat(new OneToOneChatFrame(strip(the_people.elementAt(people.getSelectedIndex())), manager));
-						else if (command.equals("highlight")) highlightedNick = strip(the_people.elementAt(people.getSelectedIndex()));
+						else if (command.equals("private")) manager.addPrivateChat(new OneToOneChatFrame(the_people.getNick(people.getSelectedIndex()), manager));
+						else if (command.equals("highlight")) highlightedNick = the_people.getNick(people.getSelectedIndex());
 					}
 				catch (NoSuchMethodException ignore) {}
 		}
@@ -256,107 +274,120 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 
 
 	/**
-	  * Adds a nickname to the list of people in alphabetical order.
+	  * Adds a nickname to the list of people, sorted by rank and alphabetical order.
 	  * Called when somebody joins.
-	  * @param userName the nickname to be added
+	  * @param userName the nickname to be added, with '@' or '+' for privileged users
 	  */
 	public void addToPeople(String userName)
 		{
-			if (userName == null || userName.trim().equals("")) return;
-			if (the_people.size() == 0) the_people.addElement(userName);
-			else if (userName.compareTo(the_people.lastElement()) > 0) the_people.addElement(userName);
-			else
+			if (userName == null) return;
+			the_people.add(userName);
+		}
+
+
+	/**
+	  * Adds many nicknames at once, e.g. after a netjoin.
+	  * @param userNames the nicknames to be added; names already in the list are ignored
+	  * @return the number of added names
+	  */
+	public int addToPeople(Collection<String> userNames) {return the_people.addAll(userNames); }
+
+
+	/**
+	  * Collects the names of one line of a NAMES reply (353).
+	  * The names are shown when the reply is complete, see showCollectedPeople().
+	  * @param names the nicknames separated by spaces, with '@' or '+' for privileged users
+	  */
+	public void collectPeople(String names)
+		{
+			if (pendingPeople == null) pendingPeople = new ArrayList<String>();
+			int start = 0, end;
+			int length = names.length();
+			while (start < length)
 				{
-					// Check if name is already present
-					for (int k = the_people.size(); k > 0; --k) if (userName.equals(the_people.elementAt(k - 1))) return;
-					// Name is not in list. Add it.
-					int lower = 0;
-					int upper = the_people.size() - 1;
-					int mid = 0;
-					while (lower < upper)
-						{
-							mid = (lower + upper) / 2;
-							if (userName.toLowerCase().compareTo((the_people.elementAt(mid)).toLowerCase()) > 0) lower = mid + 1;
-							else upper = mid;
-						}
-					the_people.insertElementAt(userName, lower);
+					end = names.indexOf(' ', start);
+					if (end == -1) end = length;
+					if (end > start) pendingPeople.add(names.substring(start, end));
+					start = end + 1;
 				}
 		}
 
 
 	/**
-	  * Called by method setPeopleOfChannel() in class NovaManager.
+	  * Replaces the list of people with the names collected since the last call.
+	  * Called at the end of a NAMES reply (366).
+	  */
+	public void showCollectedPeople()
+		{
+			if (pendingPeople == null) return;
+			the_people.setAll(pendingPeople);
+			pendingPeople = null;
+			checkOpStatus();
+		}
+
+
+	/**
+	  * Applies the case mapping and nickname prefixes of the server to the list of people.
+	  * @param support the features announced by the server
+	  */
+	public void applyServerSupport(IRCServerSupport support)
+		{
+			the_people.setServerRules(support.getCaseMapping(), support.getPrefixes());
+		}
+
+
+	/**
+	  * Called when the connection to the server broke down and a new one will be made.
+	  * The window stays open with its text; the list of people is filled again when the channel is rejoined.
+	  * @param note the text shown in the window, e.g. when the next attempt is made
+	  */
+	public void connectionLost(String note)
+		{
+			pendingPeople = null;
+			the_people.clear();
+			appendMessage("\n");
+			appendMessage(" ", NovaTextStyles.getMicroIcon1());
+			appendMessage(note, NovaTextStyles.getNovaStyle());
+		}
+
+
+	/**
 	  * Used to check if the user is the creator and operator of the channel.
 	  */
 	public void checkOpStatus()
 		{
-			if ((the_people.size() == 1) && (the_people.firstElement().charAt(0) != '@'))
-			{
-				the_people.setElementAt("@" + nick, 0);
-			}
+			the_people.opIfAlone();
 		}
 
 
 	/**
 	  * Removes a nickname from the list of people in the channel.
 	  * Called when somebody leaves the channel or quits IRC.
-	  * Also recognizes privileged users.
 	  * @param userName the nickname to be removed
 	  * @return true if the name to be removed was found in the list, false otherwise
 	  */
-	public boolean removeFromPeople(String userName)
-		{
-			String temp = "";
-			try
-				{
-					for (int k = 0; k < the_people.size(); ++k)
-						{
-							temp = the_people.elementAt(k);
-							if (temp.equals(userName) || temp.equals("@" + userName) || temp.equals("+" + userName))
-								{
-									the_people.removeElementAt(k);
-									return true;
-								}
-						}
-					return false;
-				}
-			catch (ArrayIndexOutOfBoundsException aioobe) {return false; }
-		}
+	public boolean removeFromPeople(String userName) {return the_people.remove(userName); }
+
+
+	/**
+	  * Removes many nicknames at once, e.g. after a netsplit.
+	  * @param userNames the nicknames to be removed; names not in the list are ignored
+	  * @return the number of removed names
+	  */
+	public int removeFromPeople(Collection<String> userNames) {return the_people.removeAll(userNames); }
 
 
 	/**
 	  * Called when somebody changes nickname.
-	  * Preserves the position of the old nickname.
-	  * Recognizes privileged users.
+	  * Keeps the privileges of the person.
 	  * @param oldName the nickname to be changed
 	  * @param newName the new nickname
 	  */
 	public boolean replacePerson(String oldName, String newName)
 		{
-			String temp = "";
-			for (int j = 0; j < the_people.size(); ++j)
-				{
-					temp = the_people.elementAt(j);
-					if (temp.equals(oldName))
-						{
-							the_people.setElementAt(newName, j);
-							if (oldName.equals(nick)) nick = newName;
-							return true; // no further search required
-						}
-					else if (temp.equals("@" + oldName))
-						{
-							the_people.setElementAt("@" + newName, j);
-							if (oldName.equals(nick)) nick = newName;
-							return true; // no further search required
-						}
-					else if (temp.equals("+" + oldName))
-						{
-							the_people.setElementAt("+" + newName, j);
-							if (oldName.equals(nick)) nick = newName;
-							return true; // no further search required
-						}
-				}
-			return false;
+			if (!the_people.rename(oldName, newName)) return false;
+			if (oldName.equals(nick)) nick = newName;
+			return true;
 		}
 
 
@@ -364,36 +395,14 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 	  * Used to op a person, i.e. attaches an '@' sign in front of the name if it's not done already.
 	  * @param name the nickname of the person to be opped
 	  */
-	public void opPerson(String name)
-		{
-			int limit = the_people.size();
-			for (int j = 0; j < limit; ++j)
-				{
-					if ((the_people.elementAt(j)).equals(name))
-						{
-							the_people.setElementAt('@' + name, j);
-							break; // no further search necessary
-						}
-				}
-		}
+	public void opPerson(String name) {the_people.setMode(name, '@', true); }
 
 
 	/**
 	  * Removes the '@' prefix from a person if it's there.
 	  * @param name the nickname of the person to be de-opped
 	  */
-	public void deopPerson(String name)
-		{
-			int limit = the_people.size();
-			for (int j = 0; j < limit; ++j)
-				{
-					if ((the_people.elementAt(j)).equals('@' + name))
-						{
-							the_people.setElementAt(name, j);
-							break; // no further search necessary
-						}
-				}
-		}
+	public void deopPerson(String name) {the_people.setMode(name, '@', false); }
 
 
 	/**
@@ -401,55 +410,32 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 	  * Attaches a '+' sign in front of the name if it's not done already.
 	  * @param name the nickname of the person to be given voice
 	  */
-	public void giveVoice(String name)
-		{
-			int limit = the_people.size();
-			for (int j = 0; j < limit; ++j)
-				{
-					if ((the_people.elementAt(j)).equals(name))
-						{
-							the_people.setElementAt('+' + name, j);
-							break; // no further search necessary
-						}
-				}
-		}
+	public void giveVoice(String name) {the_people.setMode(name, '+', true); }
 
 
 	/**
 	  * Removes the '+' sign from a person if it's there.
 	  * @param name the nickname of the person to be silenced
 	  */
-	public void takeVoice(String name)
-		{
-			int limit = the_people.size();
-			for (int j = 0; j < limit; ++j)
-				{
-					if (the_people.elementAt(j).equals('+' + name))
-						{
-							the_people.setElementAt(name, j);
-							break; // no further search necessary
-						}
-				}
-		}
+	public void takeVoice(String name) {the_people.setMode(name, '+', false); }
 
 
 	/**
 	  * Appends a message, with its style, to the main text area.
 	  * Used to show messages coming from other users and messages of the program.
 	  * Text is not automatically appended at a new line. That is left to the user.
+	  * The message is shown with the next frame of the append queue, so this method can be called from any thread.
 	  * @param newIncoming the message to be appended
 	  * @param style the style (color, font, etc.) of the message
 	  */
 	public void appendMessage(String newIncoming, Style style)
 		{
-			Document doc = mainArea.getDocument();
       // check if the user's nickname appears in the text
       if ((newIncoming.indexOf(" " + nick + " ") >= 0) || (newIncoming.indexOf(nick + ": ") == 0))
         {
           appendMessage(" ", NovaTextStyles.getMicroIcon1());
         }
-			try {doc.insertString(doc.getLength(), newIncoming, style); }
-			catch (BadLocationException ble) { /* ignore */ }
+			appendQueue.append(newIncoming, style);
 			if (logging && logWriter != null)
 				{
 					try
@@ -466,81 +452,19 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 							//mainArea.append("ERROR occured while writing to log file.\nStopping logging action.\n");
 				    }
         }
-      mainArea.setCaretPosition(doc.getLength());
 		}
 
 
 	/**
 	  * Appends a message, in default text style, to the main text area.
-	  * Color-coded messages (according to mIRC format) are handled here (with iterative method calls).
+	  * mIRC formatting codes (colors, bold, underline, reverse) are decoded in one pass by MIRCDecoder.
 	  * Used to show messages coming from other users and messages of the program.
 	  * Text is not automatically appended at a new line. That is left to the user.
 	  * @param newIncoming the message to be appended
 	  */
 	public void appendMessage(String newIncoming)
 		{
-			// first check if text is color-coded
-			int k = newIncoming.indexOf(ctrlC);
-			if (k == 0) // there is a '^C' at the beginning
-				{
-					if (newIncoming.length() == 1) return;
-					int N, M;
-					try // foreground color specified?
-						{
-							N = Integer.valueOf(newIncoming.substring(k + 1, k + 3)).intValue();
-						}
-					catch (Exception e) // no foreground color specified
-						{
-							newIncoming = newIncoming.substring(1);
-							int l = newIncoming.indexOf(ctrlC);
-							if (l == -1) appendMessage(newIncoming, NovaTextStyles.getChatStyle());
-							else
-								{
-									appendMessage(newIncoming.substring(0, l), NovaTextStyles.getChatStyle());
-									appendMessage(newIncoming.substring(l));
-								}
-							return;
-						}
-					try // background color specified?
-						{
-							if (newIncoming.charAt(k + 3) == ',')
-								M = Integer.valueOf(newIncoming.substring(k + 4, k + 6)).intValue();
-							else throw new Exception();
-						}
-					catch (Exception e) // no background color specified
-						{
-							newIncoming = newIncoming.substring(k + 3);
-							int l = newIncoming.indexOf(ctrlC);
-							if (l == -1) appendMessage(newIncoming, NovaTextStyles.makeCustomColoredStyle(NovaTextStyles.getmIRCColor(N)));
-							else
-								{
-									appendMessage(newIncoming.substring(0, l), NovaTextStyles.makeCustomColoredStyle(NovaTextStyles.getmIRCColor(N)));
-									appendMessage(newIncoming.substring(l));
-								}
-							return;
-						}
-					// foreground and background colors are given
-					/*
-					 * ATTENTION:
-					 * PROBLEM WITH javax.swing.text.StyleConstants.setBackground(Style, Color)
-					 * HERE, THE BACKGROUND COLOR IS PARSED BUT NOT SHOWN
-					 */
-					newIncoming = newIncoming.substring(k + 6);
-					int l = newIncoming.indexOf(ctrlC);
-					if (l == -1) appendMessage(newIncoming, NovaTextStyles.makeCustomColoredStyle(NovaTextStyles.getmIRCColor(N)/*, NovaTextStyles.getmIRCColor(M)*/));
-					else
-						{
-							appendMessage(newIncoming.substring(0, l), NovaTextStyles.makeCustomColoredStyle(NovaTextStyles.getmIRCColor(N)/*, NovaTextStyles.getmIRCColor(M)*/));
-							appendMessage(newIncoming.substring(l));
-						}
-				}
-			else if (k > 0) // there is a '^C' but not at the beginning
-				{
-					appendMessage(newIncoming.substring(0,k), NovaTextStyles.getChatStyle());
-					appendMessage(newIncoming.substring(k));
-				}
-			else appendMessage(newIncoming, NovaTextStyles.getChatStyle()); // no color coding for this string
-      mainArea.setCaretPosition(doc.getLength());
+			MIRCDecoder.decode(newIncoming, (text, offset, length, style) -> appendMessage(text.substring(offset, offset + length), style));
 		}
 
 
@@ -549,8 +473,18 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 
 	public String getHighlightedNick() {return highlightedNick; }
 
+	/** @return the key of the channel, null if it has none */
+	public String getKey() {return key; }
+
+	/** @param key the key of the channel, null if it was removed */
+	public void setKey(String key) {this.key = key; }
+
 	/** Calls a function of the manager to send the JOIN command. */
-	private void connectToChannel() {if (manager != null) manager.sendMessage("JOIN " + thisChannel); }
+	private void connectToChannel()
+		{
+			String k = key;
+			if (manager != null) manager.sendMessage("JOIN " + thisChannel + ((k == null) ? "" : " " + k));
+		}
 
 
 	private void giveColors()
@@ -617,17 +551,6 @@ public class ChannelFrame extends JInternalFrame implements Runnable, ActionList
 		}
 
 
-	/**
-	  * Removes the heading operator (@) and moderation (+) indicators, if present.
-	  * @param nick the nickname to be stripped off its header
-	  */
-	private static synchronized String strip(String nick)
-		{
-			if (nick.charAt(0) == '@' || nick.charAt(0) == '+') return nick.substring(1);
-			else return nick;
-		}
-
-
 	//____________________________________________________________________________
 	// TextLineInputDialog processes
 
@@ -0,0 +1,414 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.guis;
+
+import java.util.*;
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+import fish.robo.nova.IRCCaseMapping;
+
+/**
+  * The list of people in a channel, as shown by ChannelFrame.
+  * People are sorted by rank (operators, then voiced people, then the rest) and then alphabetically.
+  * A hash index finds a person by nickname, and binary search finds the position in the sorted list,
+  * so each join, part or mode change fires a single interval event for the affected rows.
+  * The list is changed by the inbound executor of the connection. Each change is replayed on the EDT
+  * into the rows that the JList reads, and its events are fired there, so the JList only sees
+  * rows and events that belong together. Only the sorted list and the index are locked.
+  * @author Kai Berk Oezer
+  */
+public class ChannelMemberList extends AbstractListModel<String>
+{
+	/** A person in the channel. Never changed, so the same object can be in the list and in the rows. */
+	private static final class Member
+		{
+			final String nick;
+			/** the lower case nickname, used for sorting */
+			final String sortKey;
+			/** bit k is set if the person has the mode of prefix k */
+			final int modes;
+			/** prefix and nickname as shown in the list */
+			final String display;
+
+			Member(String nick, int modes, String prefixes)
+				{
+					this.nick = nick;
+					this.modes = modes;
+					sortKey = nick.toLowerCase(Locale.ROOT);
+					display = (modes == 0) ? nick : prefixes.charAt(Integer.numberOfTrailingZeros(modes)) + nick;
+				}
+		}
+
+	/** the nickname prefixes, highest rank first */
+	private String prefixes = "@+";
+	/** the rule by which nicknames are compared */
+	private IRCCaseMapping mapping = IRCCaseMapping.RFC1459;
+	/** the people, sorted by rank and nickname */
+	private final ArrayList<Member> sorted = new ArrayList<Member>();
+	/** the people, by lookup key of the nickname */
+	private final HashMap<String,Member> index = new HashMap<String,Member>();
+	/** the rows shown by the JList; only used on the EDT */
+	private final ArrayList<Member> rows = new ArrayList<Member>();
+
+	private final Comparator<Member> order = new Comparator<Member>()
+		{
+			public int compare(Member a, Member b)
+				{
+					int r = rank(a) - rank(b);
+					if (r != 0) return r;
+					r = a.sortKey.compareTo(b.sortKey);
+					return (r != 0) ? r : a.nick.compareTo(b.nick);
+				}
+		};
+
+
+	//______________________________________________________________________________
+	// ListModel, used on the EDT
+
+
+	public int getSize() {return rows.size(); }
+
+	/** @return the nickname with the prefix of its highest mode, e.g. "@nick" */
+	public String getElementAt(int i) {return rows.get(i).display; }
+
+	/** @return the nickname, without prefix, in the given row */
+	public String getNick(int i) {return rows.get(i).nick; }
+
+
+	//______________________________________________________________________________
+	// functional methods
+
+
+	/** @return true if the nickname is in the list */
+	public synchronized boolean contains(String nick) {return index.containsKey(key(nick)); }
+
+
+	/**
+	  * Adds a person. Leading prefixes of the name (e.g. "@" in "@nick") become modes.
+	  * @param name the nickname, optionally with prefixes
+	  * @return false if the name was empty or the person was already in the list
+	  */
+	public synchronized boolean add(String name)
+		{
+			Member m = parse(name);
+			if (m == null || index.containsKey(key(m.nick))) return false;
+			index.put(key(m.nick), m);
+			int i = insertionPoint(m);
+			sorted.add(i, m);
+			onEDT(() -> {
+					rows.add(i, m);
+					fireIntervalAdded(this, i, i);
+				});
+			return true;
+		}
+
+
+	/**
+	  * Removes a person.
+	  * @param nick the nickname, without prefix
+	  * @return true if the person was in the list
+	  */
+	public synchronized boolean remove(String nick)
+		{
+			Member m = index.remove(key(nick));
+			if (m == null) return false;
+			int i = positionOf(m);
+			sorted.remove(i);
+			onEDT(() -> {
+					rows.remove(i);
+					fireIntervalRemoved(this, i, i);
+				});
+			return true;
+		}
+
+
+	/**
+	  * Changes the nickname of a person. The modes are kept.
+	  * @return true if the old nickname was in the list
+	  */
+	public synchronized boolean rename(String oldNick, String newNick)
+		{
+			Member m = index.remove(key(oldNick));
+			if (m == null) return false;
+			int from = positionOf(m);
+			sorted.remove(from);
+			Member renamed = new Member(newNick, m.modes, prefixes);
+			index.put(key(newNick), renamed);
+			move(renamed, from);
+			return true;
+		}
+
+
+	/**
+	  * Sets or clears the mode of a nickname prefix, e.g. '@' for channel operators.
+	  * @return true if the list changed
+	  */
+	public synchronized boolean setMode(String nick, char prefix, boolean on)
+		{
+			int bit = prefixes.indexOf(prefix);
+			Member m = index.get(key(nick));
+			if (bit < 0 || m == null) return false;
+			int modes = on ? (m.modes | (1 << bit)) : (m.modes & ~(1 << bit));
+			if (modes == m.modes) return false;
+			int from = positionOf(m);
+			sorted.remove(from);
+			Member changed = new Member(m.nick, modes, prefixes);
+			index.put(key(m.nick), changed);
+			move(changed, from);
+			return true;
+		}
+
+
+	/**
+	  * Makes the only person in the list an operator, as the creator of a new channel is.
+	  * @return true if the list changed
+	  */
+	public synchronized boolean opIfAlone()
+		{
+			return sorted.size() == 1 && setMode(sorted.get(0).nick, '@', true);
+		}
+
+
+	/**
+	  * Replaces all people with the given names, sorted once. Used for the complete list of a NAMES reply.
+	  * Fires one event for the removed and one for the added rows.
+	  * @param names the nicknames, optionally with prefixes; duplicates and empty names are ignored
+	  */
+	public synchronized void setAll(Collection<String> names)
+		{
+			sorted.clear();
+			index.clear();
+			for (String name : names)
+				{
+					Member m = parse(name);
+					if (m != null && index.put(key(m.nick), m) == null) sorted.add(m);
+				}
+			Collections.sort(sorted, order);
+			replaceRows();
+		}
+
+
+	/**
+	  * Adds many people at once, e.g. those that come back with a netjoin.
+	  * The new people are sorted among themselves and merged into the list in one pass.
+	  * Fires one event per run of rows that were added next to each other.
+	  * @param names the nicknames, optionally with prefixes; names already in the list are ignored
+	  * @return the number of added people
+	  */
+	public synchronized int addAll(Collection<String> names)
+		{
+			ArrayList<Member> added = new ArrayList<Member>();
+			for (String name : names)
+				{
+					Member m = parse(name);
+					if (m != null && !index.containsKey(key(m.nick)))
+						{
+							index.put(key(m.nick), m);
+							added.add(m);
+						}
+				}
+			if (added.isEmpty()) return 0;
+			Collections.sort(added, order);
+			int oldSize = sorted.size();
+			ArrayList<Member> merged = new ArrayList<Member>(oldSize + added.size());
+			// the runs of added rows, as first and last position in the merged list
+			ArrayList<int[]> runs = new ArrayList<int[]>();
+			int i = 0, k = 0;
+			while (i < oldSize || k < added.size())
+				{
+					if (k == added.size() || (i < oldSize && order.compare(sorted.get(i), added.get(k)) <= 0)) merged.add(sorted.get(i++));
+					else
+						{
+							int at = merged.size();
+							if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] == at - 1) runs.get(runs.size() - 1)[1] = at;
+							else runs.add(new int[] {at, at});
+							merged.add(added.get(k++));
+						}
+				}
+			sorted.clear();
+			sorted.addAll(merged);
+			// in ascending order, each run goes to its final position, as the rows before it are already in place
+			onEDT(() -> {
+					for (int[] run : runs)
+						{
+							rows.addAll(run[0], merged.subList(run[0], run[1] + 1));
+							fireIntervalAdded(this, run[0], run[1]);
+						}
+				});
+			return added.size();
+		}
+
+
+	/**
+	  * Removes many people at once, e.g. those that quit with a netsplit.
+	  * Fires one event per run of rows that were removed next to each other.
+	  * @param nicks the nicknames, without prefix; names not in the list are ignored
+	  * @return the number of removed people
+	  */
+	public synchronized int removeAll(Collection<String> nicks)
+		{
+			int removed = 0;
+			for (String nick : nicks) if (index.remove(key(nick)) != null) ++removed;
+			if (removed == 0) return 0;
+			// the runs of removed rows, as first and last position in the old list
+			ArrayList<int[]> runs = new ArrayList<int[]>();
+			ArrayList<Member> kept = new ArrayList<Member>(sorted.size() - removed);
+			for (int i = 0; i < sorted.size(); ++i)
+				{
+					Member m = sorted.get(i);
+					if (index.get(key(m.nick)) == m) kept.add(m);
+					else if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] == i - 1) runs.get(runs.size() - 1)[1] = i;
+					else runs.add(new int[] {i, i});
+				}
+			sorted.clear();
+			sorted.addAll(kept);
+			// in descending order, so that the positions of the runs still to be removed stay valid
+			onEDT(() -> {
+					for (int r = runs.size() - 1; r >= 0; --r)
+						{
+							int[] run = runs.get(r);
+							rows.subList(run[0], run[1] + 1).clear();
+							fireIntervalRemoved(this, run[0], run[1]);
+						}
+				});
+			return removed;
+		}
+
+
+	/**
+	  * Applies the nickname rules of a server, as announced in ISUPPORT (005).
+	  * Modes whose prefix is not used by the server are dropped.
+	  * @param newMapping the case mapping of nicknames
+	  * @param newPrefixes the nickname prefixes, highest rank first, e.g. "~&@%+"
+	  */
+	public synchronized void setServerRules(IRCCaseMapping newMapping, String newPrefixes)
+		{
+			if (newMapping == mapping && newPrefixes.equals(prefixes)) return;
+			index.clear();
+			for (int i = 0; i < sorted.size(); ++i)
+				{
+					Member m = sorted.get(i);
+					int modes = 0;
+					for (int bit = 0; bit < prefixes.length(); ++bit)
+						{
+							int newBit = newPrefixes.indexOf(prefixes.charAt(bit));
+							if ((m.modes & (1 << bit)) != 0 && newBit >= 0) modes |= 1 << newBit;
+						}
+					sorted.set(i, new Member(m.nick, modes, newPrefixes));
+				}
+			mapping = newMapping;
+			prefixes = newPrefixes;
+			for (Member m : sorted) index.put(key(m.nick), m);
+			Collections.sort(sorted, order);
+			Member[] shown = sorted.toArray(new Member[sorted.size()]);
+			onEDT(() -> {
+					rows.clear();
+					rows.addAll(Arrays.asList(shown));
+					if (shown.length > 0) fireContentsChanged(this, 0, shown.length - 1);
+				});
+		}
+
+
+	/** Removes all people. */
+	public synchronized void clear()
+		{
+			if (sorted.isEmpty()) return;
+			sorted.clear();
+			index.clear();
+			replaceRows();
+		}
+
+
+	//______________________________________________________________________________
+	// internals
+
+
+	/** @return the key of a nickname in the hash index */
+	private String key(String nick) {return mapping.fold(nick); }
+
+	/** @return the position of the highest mode in the prefix list, or the number of prefixes for people without modes */
+	private int rank(Member m)
+		{
+			return (m.modes == 0) ? prefixes.length() : Integer.numberOfTrailingZeros(m.modes);
+		}
+
+	private Member parse(String name)
+		{
+			if (name == null) return null;
+			name = name.trim();
+			int k = 0, modes = 0;
+			for (int bit; k < name.length() && (bit = prefixes.indexOf(name.charAt(k))) >= 0; ++k) modes |= 1 << bit;
+			if (k == name.length()) return null;
+			return new Member(name.substring(k), modes, prefixes);
+		}
+
+	/** @return the position of a member that is in the sorted list */
+	private int positionOf(Member m) {return Collections.binarySearch(sorted, m, order); }
+
+	/** @return the position at which a member that is not in the sorted list would be inserted */
+	private int insertionPoint(Member m)
+		{
+			int i = Collections.binarySearch(sorted, m, order);
+			return (i < 0) ? -(i + 1) : i;
+		}
+
+	/** Puts a member, removed from the given position, at its sorted position and replays the move in the rows. */
+	private void move(Member m, int from)
+		{
+			int to = insertionPoint(m);
+			sorted.add(to, m);
+			onEDT(() -> {
+					if (to == from)
+						{
+							rows.set(to, m);
+							fireContentsChanged(this, to, to);
+						}
+					else
+						{
+							rows.remove(from);
+							fireIntervalRemoved(this, from, from);
+							rows.add(to, m);
+							fireIntervalAdded(this, to, to);
+						}
+				});
+		}
+
+
+	/** Replaces all rows with the sorted list; fires one event for the removed and one for the added rows. */
+	private void replaceRows()
+		{
+			Member[] shown = sorted.toArray(new Member[sorted.size()]);
+			onEDT(() -> {
+					int oldSize = rows.size();
+					rows.clear();
+					if (oldSize > 0) fireIntervalRemoved(this, 0, oldSize - 1);
+					rows.addAll(Arrays.asList(shown));
+					if (shown.length > 0) fireIntervalAdded(this, 0, shown.length - 1);
+				});
+		}
+
+
+	/**
+	  * Replays a change in the rows on the EDT. Always queued, also on the EDT, so the changes keep their order.
+	  * Called with the lock held, so the order of the queue is the order of the changes.
+	  */
+	private static void onEDT(Runnable change) {SwingUtilities.invokeLater(change); }
+}
@@ -246,10 +246,10 @@ public class ConnectionDialog extends JDialog implements ActionListener, ListSel
 				{
 					String server_address = address.getText().trim();
 					if (server_address.equals("")) return;
-					int server_port = 6667;
-					try {server_port = Integer.parseInt(port.getText()); }
+					IRCServerItem target = new IRCServerItem(null, server_address, 6667);
+					try {target.setPortField(port.getText()); }
 					catch (NumberFormatException ignore) {}
-					manager.connectToServer(server_address, server_port, password, nickname, user);
+					manager.connectToServer(server_address, target.getPort(), target.isSecure(), password, nickname, user);
           updateServers();
 					dispose();
 				}
@@ -272,12 +272,10 @@ public class ConnectionDialog extends JDialog implements ActionListener, ListSel
 									// change data fields of the server item
 									tmpItem = serverList.get(i);
 									tmpItem.setAddress(address.getText());
-									int prt = 6667;
-									try {prt = Integer.parseInt(port.getText()); }
-									catch (NumberFormatException ignore) {}
-									tmpItem.setPort(prt);
+									try {tmpItem.setPortField(port.getText()); }
+									catch (NumberFormatException ignore) {tmpItem.setPortField("6667"); }
 									found = true;
-									manager.getEnvironment().replaceTagLine("server " + tmp, "server " + tmp + " " + address.getText() + " " + prt);
+									manager.getEnvironment().replaceTagLine("server " + tmp + " ", tmpItem.toEnvironmentLine());
 									break;
 								}
 						}
@@ -291,17 +289,17 @@ public class ConnectionDialog extends JDialog implements ActionListener, ListSel
                   JOptionPane.showMessageDialog(this, "You forgot entering the server's Internet address.", "Nova Error", JOptionPane.ERROR_MESSAGE);
                   return;
                 }
-							int prt = 6667;
-							try {prt = Integer.parseInt(port.getText().trim()); }
+							IRCServerItem newItem = new IRCServerItem(n, adr, 6667);
+							try {newItem.setPortField(port.getText()); }
 							catch (NumberFormatException ignore)
                 {
                   JOptionPane.showMessageDialog(this, "Missing or invalid server port number.", "Nova Error", JOptionPane.ERROR_MESSAGE);
                   return;
                 }
 							//
-							serverList.addElement(new IRCServerItem(n, adr, prt));
+							serverList.addElement(newItem);
 							serverRepresentations.addElement(n);
-							manager.getEnvironment().append("server " + n + " " + adr + " " + Integer.toString(prt));
+							manager.getEnvironment().append(newItem.toEnvironmentLine());
               name.setText("");
               address.setText("");
               port.setText("");
@@ -349,7 +347,7 @@ public class ConnectionDialog extends JDialog implements ActionListener, ListSel
       IRCServerItem dummy = serverList.elementAt(lse.getFirstIndex());
       name.setText(dummy.getName());
 			address.setText(dummy.getAddress());
-			port.setText(Integer.toString(dummy.getPort()));
+			port.setText(dummy.getPortField());
       if (!up.isEnabled())
         {
           up.setEnabled(true);
@@ -391,31 +389,8 @@ public class ConnectionDialog extends JDialog implements ActionListener, ListSel
       password = user.substring(0, user.indexOf(" "));
 			user = user.substring(user.indexOf(" ") + 1).trim();
 			// extract server list
-			Vector v1 = manager.getEnvironment().getAllTagLines("server");
-			String temp, tempName, tempAddress;
-      int tempPort;
-			for (int i = 0; i < v1.size(); ++i)
-				{
-					try
-						{
-							temp = (String) v1.get(i);
-							// get rid of the 'server' tag
-							temp = temp.substring(7);
-							// get server name
-							tempName = temp.substring(0, temp.indexOf(" "));
-							// get rid of the name
-							temp = temp.substring(temp.indexOf(" ") + 1);
-							// get server address
-							tempAddress = temp.substring(0, temp.indexOf(" "));
-							// get rid of the address - the remaining string is the port
-							try {tempPort = Integer.parseInt(temp.substring(temp.indexOf(" ") + 1).trim()); }
-							catch (NumberFormatException ignore) {tempPort = 6667; }
-							// add this server to the list
-							serverList.add(new IRCServerItem(tempName, tempAddress, tempPort));
-						}
-					// there is a corrupt entry -> entry is skipped
-					catch (StringIndexOutOfBoundsException sioobe) {continue; }
-				}
+			// corrupt entries are skipped
+			serverList.addAll(IRCServerItem.fromEnvironment(manager.getEnvironment()));
 		}
 
 
@@ -438,7 +413,7 @@ public class ConnectionDialog extends JDialog implements ActionListener, ListSel
       for (int k = 0; k < limit; k++)
         {
           dummy = serverList.get(k);
-          newServers.add("server " + dummy.getName() + " " + dummy.getAddress() + " " + Integer.toString(dummy.getPort()));
+          newServers.add(dummy.toEnvironmentLine());
         }
       manager.getEnvironment().replaceAllTagLines("server ", newServers);
     }
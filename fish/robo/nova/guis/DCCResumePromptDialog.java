@@ -123,7 +123,7 @@ public class DCCResumePromptDialog extends JDialog implements ActionListener, Ch
 				{
 					if  (resume.isSelected())
 						{
-							DCCManager.RESUMERegister.addElement(dccManager);
+							DCCRegistry.RESUMES.register(dccManager);
 							String position = String.valueOf((new File(dccManager.getAbsoluteFileName())).length());
 							manager.sendMessage("PRIVMSG " + dccManager.getNickname() + " :\001DCC RESUME " + dccManager.getFileName() + " " + String.valueOf(dccManager.getPort()) + " " + position + '\001');
 						}
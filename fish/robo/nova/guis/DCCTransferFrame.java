@@ -0,0 +1,115 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.guis;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.table.AbstractTableModel;
+import fish.robo.nova.*;
+import fish.robo.nova.netlinks.DCCScheduler;
+
+/**
+  * Shows the queued, active and recently finished DCC file transfers of all sessions, with their current rates.
+  * The list is read from the DCCScheduler once a second while the window is open.
+  * @author Kai Berk Oezer
+  */
+public class DCCTransferFrame extends JInternalFrame implements ActionListener
+{
+	private static final String[] COLUMNS = {"Partner", "File", "Direction", "State", "Progress", "Rate"};
+
+	private final TransferTable table = new TransferTable();
+	private final javax.swing.Timer refresher = new javax.swing.Timer(1000, this);
+
+
+	/** The rows of the table, one per transfer. */
+	private static final class TransferTable extends AbstractTableModel
+		{
+			private List<DCCTransfer> rows = Collections.<DCCTransfer>emptyList();
+			private long[] rates = new long[0];
+
+			void refresh()
+				{
+					rows = new ArrayList<DCCTransfer>(DCCScheduler.getShared().getTransfers());
+					rates = new long[rows.size()];
+					for (int i = 0; i < rates.length; ++i) rates[i] = rows.get(i).sampleRate();
+					fireTableDataChanged();
+				}
+
+			public int getRowCount() {return rows.size(); }
+			public int getColumnCount() {return COLUMNS.length; }
+			public String getColumnName(int column) {return COLUMNS[column]; }
+
+			public Object getValueAt(int row, int column)
+				{
+					DCCTransfer t = rows.get(row);
+					switch (column)
+						{
+							case 0: return t.getNickname();
+							case 1: return t.getFileName();
+							case 2: return t.isSending() ? "send" : "get";
+							case 3: return t.getState().toString().toLowerCase(Locale.ROOT);
+							case 4: return (t.getFileSize() > 0) ? (100 * t.getPosition() / t.getFileSize()) + "%" : kilobytes(t.getPosition());
+							default:
+								switch (t.getState())
+									{
+										case ACTIVE: return kilobytes(rates[row]) + "/s";
+										case QUEUED: return "";
+										default: return kilobytes(t.getAverageRate()) + "/s avg";
+									}
+						}
+				}
+
+			private static String kilobytes(long bytes) {return (bytes + 512) / 1024 + " KB"; }
+		}
+
+
+	/** @param parent the main window, to which the transfer window is added */
+	public DCCTransferFrame(NovaInterface parent)
+		{
+			super("DCC Transfers", true, true, true, true);
+			JTable view = new JTable(table);
+			view.setFillsViewportHeight(true);
+			getContentPane().add(new JScrollPane(view), BorderLayout.CENTER);
+
+			NovaEnvironment myEnv = parent.getManager().getEnvironment();
+			view.setBackground(myEnv.getSecondBackColor());
+			view.setForeground(myEnv.getSecondForeColor());
+
+			addInternalFrameListener(new InternalFrameAdapter()
+				{
+					public void internalFrameClosed(InternalFrameEvent ife) {refresher.stop(); }
+				});
+			table.refresh();
+			refresher.start();
+			parent.addToInterface(this);
+			setSize(520, 200);
+			setFrameIcon(parent.NovaIcon);
+			setVisible(true);
+		}
+
+
+	/** Called by the timer. */
+	public void actionPerformed(ActionEvent ae) {table.refresh(); }
+}
@@ -0,0 +1,186 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.guis;
+
+import javax.swing.text.Style;
+
+/**
+  * Decodes the mIRC formatting codes of a message in a single pass.
+  * The message is split into runs of text with the same formatting. The control codes are not part of any run.
+  * Supported are ^B (bold), ^C (colors), ^_ (underline), ^V (reverse) and ^O (reset).
+  * Italics (^]), strike-through (^^), monospace (^Q) and hex colors (^D) are removed but not shown.
+  * @author Kai Berk Oezer
+  */
+public class MIRCDecoder
+{
+	public final static char BOLD = 2;
+	public final static char COLOR = 3;
+	public final static char HEX_COLOR = 4;
+	public final static char RESET = 15;
+	public final static char MONOSPACE = 17;
+	public final static char REVERSE = 22;
+	public final static char ITALIC = 29;
+	public final static char STRIKE = 30;
+	public final static char UNDERLINE = 31;
+
+
+	/** Receives the runs of a decoded message. */
+	public interface RunListener
+		{
+			/**
+			  * @param text the whole message
+			  * @param offset the start of the run in the message
+			  * @param length the length of the run, always greater than zero
+			  * @param style the style of the run, shared and not to be modified
+			  */
+			public void textRun(String text, int offset, int length, Style style);
+		}
+
+
+	private MIRCDecoder() {}
+
+
+	/**
+	  * Splits a message into runs of equally formatted text and passes them to the listener in order.
+	  * Formatting starts in the default chat style and does not carry over to the next message.
+	  * @param text the message
+	  * @param listener receives the runs
+	  */
+	public static void decode(String text, RunListener listener)
+		{
+			int length = text.length();
+			int fg = -1, bg = -1;
+			boolean bold = false, underline = false, reverse = false;
+			Style style = NovaTextStyles.getChatStyle();
+			int runStart = 0;
+			int i = 0;
+			while (i < length)
+				{
+					char c = text.charAt(i);
+					if (c >= 32 || !isControl(c))
+						{
+							++i;
+							continue;
+						}
+					if (i > runStart) listener.textRun(text, runStart, i - runStart, style);
+					++i;
+					switch (c)
+						{
+							case BOLD: bold = !bold; break;
+							case UNDERLINE: underline = !underline; break;
+							case REVERSE: reverse = !reverse; break;
+							case RESET:
+								fg = bg = -1;
+								bold = underline = reverse = false;
+								break;
+							case COLOR:
+								{
+									int digits = countDigits(text, i, 2);
+									if (digits == 0)
+										{
+											// a lone ^C resets both colors
+											fg = bg = -1;
+											break;
+										}
+									fg = parseNumber(text, i, digits);
+									i += digits;
+									if (i + 1 < length && text.charAt(i) == ',')
+										{
+											digits = countDigits(text, i + 1, 2);
+											if (digits > 0)
+												{
+													bg = parseNumber(text, i + 1, digits);
+													i += digits + 1;
+												}
+										}
+									break;
+								}
+							case HEX_COLOR:
+								{
+									// skipped: ^D followed by RRGGBB and an optional ,RRGGBB
+									int digits = countHexDigits(text, i);
+									if (digits == 6)
+										{
+											i += 6;
+											if (i + 7 <= length && text.charAt(i) == ',' && countHexDigits(text, i + 1) == 6) i += 7;
+										}
+									break;
+								}
+							default: // italic, strike-through, monospace: removed without effect
+						}
+					style = NovaTextStyles.getmIRCStyle(fg, bg, bold, underline, reverse);
+					runStart = i;
+				}
+			if (length > runStart) listener.textRun(text, runStart, length - runStart, style);
+		}
+
+
+	/**
+	  * Removes all mIRC formatting codes from a message.
+	  * @param text the message
+	  * @return the message without formatting codes, the same String if it contains none
+	  */
+	public static String strip(String text)
+		{
+			final StringBuilder plain = new StringBuilder(text.length());
+			decode(text, (t, offset, length, style) -> plain.append(t, offset, offset + length));
+			return (plain.length() == text.length()) ? text : plain.toString();
+		}
+
+
+	private static boolean isControl(char c)
+		{
+			switch (c)
+				{
+					case BOLD: case COLOR: case HEX_COLOR: case RESET: case MONOSPACE:
+					case REVERSE: case ITALIC: case STRIKE: case UNDERLINE: return true;
+					default: return false;
+				}
+		}
+
+	/** @return the number of decimal digits, at most max, starting at the given index */
+	private static int countDigits(String text, int start, int max)
+		{
+			int n = 0;
+			while (n < max && start + n < text.length())
+				{
+					char c = text.charAt(start + n);
+					if (c < '0' || c > '9') break;
+					++n;
+				}
+			return n;
+		}
+
+	/** @return the number of hexadecimal digits, at most 6, starting at the given index */
+	private static int countHexDigits(String text, int start)
+		{
+			int n = 0;
+			while (n < 6 && start + n < text.length() && Character.digit(text.charAt(start + n), 16) >= 0) ++n;
+			return n;
+		}
+
+	private static int parseNumber(String text, int start, int digits)
+		{
+			int value = 0;
+			for (int k = 0; k < digits; ++k) value = value * 10 + (text.charAt(start + k) - '0');
+			return value;
+		}
+}
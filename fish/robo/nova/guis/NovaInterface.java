@@ -42,12 +42,12 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
   /** the manager of the whole IRC client environment */
   private NovaManager manager;
 
-  private JMenuItem[] menuItems = new JMenuItem[18];
+  private JMenuItem[] menuItems = new JMenuItem[20];
   /*
      menu items: New, connection, dccchat, dccsend, newNick,
                  list, join, version, clientinfo, privchat,
                  favorites, about, eXit, help, identity,
-                 colors, nameFilter, dccBlockSize
+                 colors, nameFilter, dccBlockSize, metrics
   */
 
   private JMenu[] menus = new JMenu[8];
@@ -62,6 +62,9 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
 
   private JToolBar shortcutButtons;
 
+  /** shows the lag of the server connection next to the shortcut buttons */
+  private JLabel lagLabel;
+
   private NovaInputBar inputBar;
 
   private boolean IRCenabled = false, isConnected = false;
@@ -129,7 +132,14 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
       internal.add(inputBar, "South");
       getContentPane().setLayout(new BorderLayout());
       getContentPane().add(internal, "Center");
-      getContentPane().add(shortcutButtons, "South");
+      lagLabel = new JLabel("", SwingConstants.RIGHT);
+      lagLabel.setFont(MenuFont);
+      lagLabel.setBorder(BorderFactory.createEmptyBorder(0, 6, 0, 6));
+      JPanel bottom = new JPanel();
+      bottom.setLayout(new BorderLayout());
+      bottom.add(shortcutButtons, "Center");
+      bottom.add(lagLabel, "East");
+      getContentPane().add(bottom, "South");
       status = new StatusWindow(manager, this);
       inputBar.setInputListener(status);
       desktop.add(status, JLayeredPane.DEFAULT_LAYER);
@@ -184,6 +194,8 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
       menuItems[15] = new JMenuItem("Favorites");
       menuItems[16] = new JMenuItem("client version");
       menuItems[17] = new JMenuItem("client info");
+      menuItems[18] = new JMenuItem("Show Metrics");
+      menuItems[19] = new JMenuItem("Transfers");
       for (int k = 12; k < 18; k++) if (k != 15) menuItems[k].setEnabled(false);
 
       menus[0] = new JMenu("Main");
@@ -219,6 +231,8 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
       menus[0].add(menuItems[6]);
       menus[7].add(checkMenus[0]);
       menus[7].add(checkMenus[1]);
+      menus[7].addSeparator();
+      menus[7].add(menuItems[18]);
       menus[6].add(menuItems[7]);
       menus[6].add(menus[7]);
       menus[6].add(menuItems[5]);
@@ -231,6 +245,7 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
       menus[4].add(menuItems[17]);
       menus[5].add(menuItems[12]);
       menus[5].add(menuItems[13]);
+      menus[5].add(menuItems[19]);
       menus[5].add(checkMenus[3]);
       menus[2].add(menus[5]);
       menus[2].add(menus[4]);
@@ -284,6 +299,8 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
       else if (com.equals("mi_ac5")) new AboutWindow((Frame)this);
       else if (com.equals("mi_ac6")) shutDown();
       else if (com.equals("mi_ac0")) new NovaManager(manager.getEnvironment());
+      else if (com.equals("mi_ac18")) manager.showMetrics();
+      else if (com.equals("mi_ac19")) new DCCTransferFrame(this);
       else try
         {
           if (com.equals("mi_ac4")) new TextLineInputDialog(this, "join a chat group", "group name:", "Join", getClass().getMethod("joinProcess", string_class));
@@ -322,20 +339,34 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
       newWindow.grabFocus();
     }
 
+  /**
+    * Shows the lag of the server connection in the status bar. Can be called from any thread.
+    * @param lag the text in the status bar, e.g. "lag 120 ms", empty while not connected
+    * @param details the tool tip, e.g. the percentiles of the lag, or null
+    */
+  public void showLag(String lag, String details)
+    {
+      SwingUtilities.invokeLater(() -> {
+          lagLabel.setText(lag);
+          lagLabel.setToolTipText(details);
+        });
+    }
+
+
   /**
     * Appends a character string to the text area in the status window.
-    * It is synchronized so that multiple access from various objects is done in a controlled way.
+    * The status window queues the text, so this method can be called from any thread.
     * @param message the text to be added
     */
-  public synchronized void appendMessage(String message) {status.appendMessage(message); }
+  public void appendMessage(String message) {status.appendMessage(message); }
 
   /**
     * Appends a character string, with given style, to the text area in the status window.
-    * It is synchronized so that multiple access from various objects is done in a controlled way.
+    * The status window queues the text, so this method can be called from any thread.
     * @param message the text to be added
     * @param style the text style (color, font, etc.) of the message
     */
-  public synchronized void appendMessage(String message, javax.swing.text.Style style) {status.appendMessage(message, style); }
+  public void appendMessage(String message, javax.swing.text.Style style) {status.appendMessage(message, style); }
 
 
   public final void giveColors()
@@ -503,10 +534,14 @@ public class NovaInterface extends JFrame implements ActionListener, WindowListe
     }
 
 
-  /** method which is called by TextLineInputDialog when wanting to join a channel */
+  /** method which is called by TextLineInputDialog when wanting to join a channel, given as "<channel> [<key>]" */
   public void joinProcess(String input)
     {
-      (new Thread(new ChannelFrame("channel: " + input + " - topic: ?", manager))).start();
+      StringTokenizer words = new StringTokenizer(input);
+      if (!words.hasMoreTokens()) return;
+      String channel = words.nextToken();
+      String key = words.hasMoreTokens() ? words.nextToken() : null;
+      (new Thread(new ChannelFrame("channel: " + channel + " - topic: ?", key, manager))).start();
     }
 
 
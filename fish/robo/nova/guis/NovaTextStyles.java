@@ -24,6 +24,7 @@ import javax.swing.*;
 import javax.swing.text.*;
 import java.util.*;
 import java.awt.Color;
+import fish.robo.nova.NovaMetrics;
 
 /**
   * Contains the text styles (colors, fonts, etc.) for some of Nova's text displays.
@@ -38,7 +39,6 @@ public class NovaTextStyles
 
 	private static Style server,
 	                       nova,
-	                       custom,
 	                       chat,
 	                       highlight,
 	                       action,
@@ -47,6 +47,26 @@ public class NovaTextStyles
 	                       micro1,
 	                       micro2;
 
+	/** interned styles for mIRC formatted text, see getmIRCStyle */
+	private static Style[] mircStyles;
+	private static long mircStyleHits, mircStyleMisses;
+
+
+	/**
+	  * Creates the styles unless they exist already.
+	  * The styles and the interned mIRC styles are shared by all sessions of the process.
+	  * The hits and misses of the interned mIRC styles are registered as the metrics "styles.mirc.hits" and "styles.mirc.misses".
+	  */
+	public static synchronized void initialize()
+		{
+			if (novaStyleContext == null)
+				{
+					new NovaTextStyles();
+					NovaMetrics.register("styles.mirc.hits", NovaTextStyles::getmIRCStyleHits);
+					NovaMetrics.register("styles.mirc.misses", NovaTextStyles::getmIRCStyleMisses);
+				}
+		}
+
 
 	public NovaTextStyles()
 		{
@@ -66,32 +86,26 @@ public class NovaTextStyles
 			StyleConstants.setFontFamily(nova, "SansSerif");
 			StyleConstants.setFontSize(nova, 12);
 			//
-			// #3: Custom colored text
-			custom = novaStyleContext.addStyle("Custom", null);
-			StyleConstants.setForeground(custom, Color.black);
-			StyleConstants.setFontFamily(custom, "DialogInput");
-			StyleConstants.setFontSize(custom, 12);
-			//
-			// #4: Default chat channel messages style
+			// #3: Default chat channel messages style
 			chat = novaStyleContext.addStyle("Chat", null);
 			StyleConstants.setForeground(chat, Color.black);
 			StyleConstants.setFontFamily(chat, "SansSerif");
 			StyleConstants.setFontSize(chat, 12);
 			//
-			// #5: Nickname highlighting style
+			// #4: Nickname highlighting style
 			highlight = novaStyleContext.addStyle("Highlight", null);
 			StyleConstants.setForeground(highlight, mirc06);
 			StyleConstants.setBold(highlight, true);
 			StyleConstants.setFontFamily(highlight, "SansSerif");
 			StyleConstants.setFontSize(highlight, 12);
             //
-			// #6: Ctcp ACTION style
+			// #5: Ctcp ACTION style
 			action = novaStyleContext.addStyle("Action", null);
 			StyleConstants.setForeground(action, mirc10);
 			StyleConstants.setFontFamily(action, "SansSerif");
 			StyleConstants.setFontSize(action, 12);
             //
-			// #7: Debug style
+			// #6: Debug style
 			debug = novaStyleContext.addStyle("Debug", null);
 			StyleConstants.setForeground(debug, Color.red);
 			StyleConstants.setFontFamily(debug, "MonoSpaced");
@@ -112,27 +126,56 @@ public class NovaTextStyles
       // #3: text caret
       caret = novaStyleContext.addStyle("Nova text caret", null);
       StyleConstants.setIcon(caret, new ImageIcon("fish/robo/nova/images/caret.gif"));
+
+			// the interned mIRC styles belong to the style context
+			synchronized (NovaTextStyles.class) {mircStyles = new Style[17 * 17 * 8]; }
     }
 
 	/**
-	  * @param c foreground color of the custom style
+	  * Returns the shared style for text with the given mIRC formatting.
+	  * The styles are created once per combination of colors and flags and then reused by all windows,
+	  * so they must not be modified.
+	  * @param fg mIRC foreground color number, -1 or 99 for the default color
+	  * @param bg mIRC background color number, -1 or 99 for the default color
+	  * @param bold ^B formatting
+	  * @param underline ^_ formatting
+	  * @param reverse ^V formatting, swaps foreground and background colors
 	  */
-	static synchronized public Style makeCustomColoredStyle(Color c)
+	static synchronized public Style getmIRCStyle(int fg, int bg, boolean bold, boolean underline, boolean reverse)
 		{
-			StyleConstants.setForeground(custom, c);
-			return custom;
+			fg = (fg < 0 || fg == 99) ? -1 : fg % 16;
+			bg = (bg < 0 || bg == 99) ? -1 : bg % 16;
+			if (fg == -1 && bg == -1 && !bold && !underline && !reverse) return chat;
+			int index = ((fg + 1) * 17 + (bg + 1)) * 8 + (bold ? 4 : 0) + (underline ? 2 : 0) + (reverse ? 1 : 0);
+			Style style = mircStyles[index];
+			if (style != null)
+				{
+					mircStyleHits++;
+					return style;
+				}
+			mircStyleMisses++;
+			style = novaStyleContext.addStyle(null, chat);
+			Color f = (fg == -1) ? null : getmIRCColor(fg);
+			Color b = (bg == -1) ? null : getmIRCColor(bg);
+			if (reverse)
+				{
+					Color swap = (f == null) ? StyleConstants.getForeground(chat) : f;
+					f = (b == null) ? mirc00 : b;
+					b = swap;
+				}
+			if (f != null) StyleConstants.setForeground(style, f);
+			if (b != null) StyleConstants.setBackground(style, b);
+			if (bold) StyleConstants.setBold(style, true);
+			if (underline) StyleConstants.setUnderline(style, true);
+			mircStyles[index] = style;
+			return style;
 		}
 
-	/**
-	  * @param fg foreground color of the custom style
-	  * @param bg background color of the custom style
-	  */
-	static synchronized public Style makeCustomColoredStyle(Color f, Color b)
-		{
-			StyleConstants.setBackground(custom, b);
-			StyleConstants.setForeground(custom, f);
-			return custom;
-		}
+	/** @return the number of getmIRCStyle calls that returned an existing style */
+	static synchronized public long getmIRCStyleHits() {return mircStyleHits; }
+
+	/** @return the number of getmIRCStyle calls that had to create a new style */
+	static synchronized public long getmIRCStyleMisses() {return mircStyleMisses; }
 
 	static public Style getServerStyle() {return server; }
 	static public Style getNovaStyle() {return nova; }
@@ -37,6 +37,8 @@ public class OneToOneChatFrame extends JInternalFrame implements ActionListener,
 {
 	/** the main text area where all messages are displayed */
 	private JTextArea main = null;
+	/** the maximum amount of text kept in the main text area */
+	private ScrollbackLimit scrollback;
 	/** the text field where the user types the outgoing text before sending it */
   private JScrollPane scroller;
 
@@ -120,6 +122,7 @@ public class OneToOneChatFrame extends JInternalFrame implements ActionListener,
 			main.setCursor(Cursor.getDefaultCursor());
 			main.setFont(new Font("SansSerif", Font.PLAIN, 14));
 			main.addMouseListener(this);
+			scrollback = ScrollbackLimit.fromEnvironment(env, ScrollbackLimit.CHAT, 2000);
 			scroller = new JScrollPane(main);
 			scroller.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
 			log = new JMenuItem("Start Logging...");
@@ -229,7 +232,8 @@ public class OneToOneChatFrame extends JInternalFrame implements ActionListener,
 	public void appendMessage(String message)
 		{
 			main.append(message + "\n");
-      main.setCaretPosition(main.getText().length());
+			scrollback.trim(main.getDocument());
+      main.setCaretPosition(main.getDocument().getLength());
 			if (logging && logWriter != null)
 				{
 					try
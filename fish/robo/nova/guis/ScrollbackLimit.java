@@ -0,0 +1,120 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.guis;
+
+import javax.swing.text.*;
+import fish.robo.nova.*;
+
+/**
+  * The maximum amount of text that a window keeps, counted in lines or in characters.
+  * The oldest lines are removed in chunks of about a tenth of the limit, so that the cost of trimming
+  * is spread evenly over the appended lines. Removed lines are gone for good, unless logging
+  * was started for the channel from its "Start logging..." menu item, in which case they are also in the log file.
+  * The limits are read from environment lines like "scrollback-channel 5000 lines" or "scrollback-status 200000 bytes".
+  * @author Kai Berk Oezer
+  */
+public class ScrollbackLimit
+{
+	public static final String CHANNEL = "scrollback-channel ";
+	public static final String STATUS = "scrollback-status ";
+	public static final String CHAT = "scrollback-chat ";
+
+	/** the maximum number of lines or characters */
+	private final int limit;
+	/** true if the limit counts characters, false if it counts lines */
+	private final boolean bytes;
+	/** how far the document may grow beyond the limit before it is trimmed */
+	private final int slack;
+
+
+	/**
+	  * @param limit the maximum number of lines or characters, 0 for no limit
+	  * @param bytes true if the limit counts characters, false if it counts lines
+	  */
+	public ScrollbackLimit(int limit, boolean bytes)
+		{
+			this.limit = Math.max(0, limit);
+			this.bytes = bytes;
+			slack = Math.max(1, this.limit / 10);
+		}
+
+
+	/**
+	  * Reads a limit from the environment.
+	  * @param env the environment
+	  * @param tag one of CHANNEL, STATUS and CHAT
+	  * @param defaultLines the number of lines used if the environment has no valid entry for the tag
+	  */
+	public static ScrollbackLimit fromEnvironment(NovaEnvironment env, String tag, int defaultLines)
+		{
+			String line = env.getFirstTagLine(tag);
+			if (line == null || line.indexOf(tag) != 0) return new ScrollbackLimit(defaultLines, false);
+			String value = line.substring(tag.length()).trim();
+			int space = value.indexOf(' ');
+			String unit = (space < 0) ? "lines" : value.substring(space + 1).trim();
+			try
+				{
+					int amount = Integer.parseInt((space < 0) ? value : value.substring(0, space));
+					return new ScrollbackLimit(amount, unit.startsWith("byte") || unit.startsWith("char"));
+				}
+			catch (NumberFormatException nfe) {return new ScrollbackLimit(defaultLines, false); }
+		}
+
+
+	/** @return the maximum number of lines or characters, 0 if there is no limit */
+	public int getLimit() {return limit; }
+
+	/** @return true if the limit counts characters, false if it counts lines */
+	public boolean countsBytes() {return bytes; }
+
+
+	/**
+	  * Removes the oldest lines of the document if it has grown beyond the limit and the slack.
+	  * Only whole lines are removed. Must be called on the thread that modifies the document.
+	  * @param doc the document of a text area or text pane
+	  * @return the number of removed characters
+	  */
+	public int trim(Document doc)
+		{
+			if (limit == 0) return 0;
+			Element root = doc.getDefaultRootElement();
+			int end;
+			if (bytes)
+				{
+					int length = doc.getLength();
+					if (length <= limit + slack) return 0;
+					// remove everything up to the end of the line that holds the first character to keep
+					Element line = root.getElement(root.getElementIndex(length - limit));
+					end = (line.getStartOffset() == length - limit) ? line.getStartOffset() : line.getEndOffset();
+				}
+			else
+				{
+					int lines = root.getElementCount();
+					if (lines <= limit + slack) return 0;
+					end = root.getElement(lines - limit).getStartOffset();
+				}
+			end = Math.min(end, doc.getLength());
+			if (end <= 0) return 0;
+			try {doc.remove(0, end); }
+			catch (BadLocationException ble) {return 0; }
+			return end;
+		}
+}
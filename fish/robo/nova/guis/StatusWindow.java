@@ -38,7 +38,9 @@ public class StatusWindow extends JInternalFrame implements ActionListener, Nova
   /** the main text area where all messages are displayed */
   private JTextPane main;
   private JButton shortcut;
-  private DefaultStyledDocument doc;
+
+  /** queues the messages for the document of the main text area */
+  private TextAppendQueue appendQueue;
 
   /** scroll bar for the main text area */
   private JScrollPane scroller;
@@ -55,9 +57,10 @@ public class StatusWindow extends JInternalFrame implements ActionListener, Nova
       setFrameIcon(parent.NovaIcon);
 
       // components
-      main = new JTextPane(doc = new DefaultStyledDocument()); // main chat area
+      main = new JTextPane(); // main chat area
       //main = new JTextArea();
-      main.setDocument(doc = new DefaultStyledDocument());
+      appendQueue = new TextAppendQueue(main);
+      appendQueue.setScrollback(ScrollbackLimit.fromEnvironment(manager.getEnvironment(), ScrollbackLimit.STATUS, 2000));
       main.setEditable(false);
       main.setCursor(Cursor.getDefaultCursor());
       //main.setLineWrap(true);
@@ -133,22 +136,20 @@ public class StatusWindow extends JInternalFrame implements ActionListener, Nova
 
   /**
     * Appends a character string to the text shown in text area 'main'.
-    * It is synchronized so that multiple access from various objects is done in a controlled way.
+    * Can be called from any thread; the text is queued and shown with the next frame.
     */
-  public synchronized void appendMessage(String message)
+  public void appendMessage(String message)
     {
       appendMessage(message, NovaTextStyles.getNovaStyle());
     }
 
   /**
     * Appends a string of text, with given style, to the JTextPane 'main'.
+    * Can be called from any thread; the text is queued and shown with the next frame.
     */
-  public synchronized void appendMessage(String message, Style style)
+  public void appendMessage(String message, Style style)
     {
-      Document doc = main.getDocument();
-      try {doc.insertString(doc.getLength(), message, style); }
-      catch (BadLocationException ble) { /* ignore */ }
-      main.setCaretPosition(doc.getLength());
+      appendQueue.append(message, style);
     }
 
 
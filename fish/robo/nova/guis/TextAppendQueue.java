@@ -0,0 +1,182 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.guis;
+
+import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.*;
+import javax.swing.text.*;
+
+/**
+  * Collects text that is appended to a JTextPane from any thread and adds it to the document on the event dispatch thread.
+  * A timer drains the queue at most once per frame, so a burst of incoming lines becomes a single document update.
+  * Used by ChannelFrame and StatusWindow, whose messages arrive on the network threads.
+  * @author Kai Berk Oezer
+  */
+public class TextAppendQueue implements ActionListener
+{
+	/** the minimum time between two document updates in milliseconds, i.e. at most 25 updates per second */
+	public static final int FRAME_INTERVAL = 40;
+
+	/** a piece of text with its style, waiting to be appended */
+	private static class Run
+		{
+			final String text;
+			final AttributeSet style;
+			Run(String text, AttributeSet style) {this.text = text; this.style = style; }
+		}
+
+	private final JTextPane pane;
+	private final BatchDocument doc;
+	private final ConcurrentLinkedQueue<Run> pending = new ConcurrentLinkedQueue<Run>();
+	/** true while the timer is started and has not drained the queue yet */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final Timer timer;
+	/** the maximum amount of text kept in the document, or null for no limit */
+	private volatile ScrollbackLimit scrollback = null;
+
+
+	/**
+	  * Gives the text pane a new document, which is filled by this queue.
+	  * @param pane the text pane showing the messages
+	  */
+	public TextAppendQueue(JTextPane pane)
+		{
+			this.pane = pane;
+			pane.setDocument(doc = new BatchDocument());
+			timer = new Timer(FRAME_INTERVAL, this);
+			timer.setRepeats(false);
+		}
+
+
+	/** @return the document of the text pane */
+	public StyledDocument getDocument() {return doc; }
+
+
+	/**
+	  * Sets the maximum amount of text kept in the document. The oldest lines are removed after each frame.
+	  * @param limit the scrollback limit, or null for no limit
+	  */
+	public void setScrollback(ScrollbackLimit limit) {scrollback = limit; }
+
+
+	/**
+	  * Queues text for the next frame. Can be called from any thread.
+	  * @param text the text to be appended
+	  * @param style the style (color, font, etc.) of the text
+	  */
+	public void append(String text, AttributeSet style)
+		{
+			if (text == null || text.length() == 0) return;
+			pending.add(new Run(text, style));
+			if (scheduled.compareAndSet(false, true)) timer.start();
+		}
+
+
+	/** Called by the timer on the event dispatch thread. Appends all queued text in one document update. */
+	public void actionPerformed(ActionEvent ae)
+		{
+			// reset first so that text queued while draining starts the timer again
+			scheduled.set(false);
+			Run run;
+			while ((run = pending.poll()) != null) doc.add(run.text, run.style);
+			doc.flush();
+			ScrollbackLimit limit = scrollback;
+			if (limit != null) limit.trim(doc);
+			pane.setCaretPosition(doc.getLength());
+		}
+
+
+	/**
+	  * A document that inserts a batch of styled text with a single structural change.
+	  */
+	private static class BatchDocument extends DefaultStyledDocument
+		{
+			private static final char[] LINE_FEED = {'\n'};
+			private final ArrayList<Run> batch = new ArrayList<Run>();
+			private final Segment last = new Segment();
+
+			void add(String text, AttributeSet style) {batch.add(new Run(text, style)); }
+
+			/** @return true if the document ends with a line feed, i.e. the insertion point is at the start of a paragraph */
+			private boolean atParagraphStart() throws BadLocationException
+				{
+					int length = getLength();
+					if (length == 0) return false;
+					getText(length - 1, 1, last);
+					return last.first() == '\n';
+				}
+
+			void flush()
+				{
+					try
+						{
+							int i = 0;
+							// A batch can only be joined to an open line.
+							// At the start of a paragraph, single runs are inserted until a line is open.
+							while (i < batch.size() && atParagraphStart())
+								{
+									Run run = batch.get(i++);
+									insertString(getLength(), run.text, run.style);
+								}
+							ArrayList<ElementSpec> specs = new ArrayList<ElementSpec>();
+							AttributeSet paragraph = getParagraphElement(0).getAttributes();
+							for (; i < batch.size(); ++i)
+								{
+									Run run = batch.get(i);
+									char[] chars = run.text.toCharArray();
+									int start = 0, end;
+									while (start < chars.length)
+										{
+											end = start;
+											while (end < chars.length && chars[end] != '\n') ++end;
+											if (end > start) specs.add(new ElementSpec(run.style, ElementSpec.ContentType, chars, start, end - start));
+											if (end < chars.length)
+												{
+													specs.add(new ElementSpec(run.style, ElementSpec.ContentType, LINE_FEED, 0, 1));
+													specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+													specs.add(new ElementSpec(paragraph, ElementSpec.StartTagType));
+												}
+											start = end + 1;
+										}
+								}
+							batch.clear();
+							if (specs.isEmpty()) return;
+							// text after the last line feed continues the paragraph that holds the end of the document
+							if (specs.get(specs.size() - 1).getType() != ElementSpec.StartTagType)
+								{
+									for (int k = specs.size() - 1; k >= 0; --k)
+										{
+											if (specs.get(k).getType() == ElementSpec.StartTagType)
+												{
+													specs.get(k).setDirection(ElementSpec.JoinFractureDirection);
+													break;
+												}
+										}
+								}
+							insert(getLength(), specs.toArray(new ElementSpec[specs.size()]));
+						}
+					catch (BadLocationException ble) {batch.clear(); }
+				}
+		}
+}
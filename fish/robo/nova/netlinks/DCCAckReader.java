@@ -0,0 +1,115 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.io.*;
+
+/**
+  * Reads the acknowledgments of a DCC SEND on a thread of its own, so that the sender can keep the socket full
+  * instead of waiting for each acknowledgment.
+  * An acknowledgment is the number of bytes received so far as an unsigned 32-bit value in network byte order.
+  * It wraps around for files of 4 GB and more, so each one is taken as an advance over the last one.
+  * The acknowledgments are read even if the sender does not wait for them, so that the partner never blocks on them.
+  * @author Kai Berk Oezer
+  */
+class DCCAckReader extends Thread
+{
+	private final DataInputStream in;
+	/** the acknowledged position in the file */
+	private long acked;
+	/** true once the partner has sent an acknowledgment */
+	private boolean any = false;
+	/** true once the partner has closed the connection */
+	private boolean closed = false;
+
+
+	/**
+	  * @param in the input stream of the connection
+	  * @param start the position at which the transfer starts
+	  */
+	DCCAckReader(DataInputStream in, long start)
+		{
+			super("Nova DCC acknowledgments");
+			this.in = in;
+			acked = start;
+			setDaemon(true);
+		}
+
+
+	public void run()
+		{
+			try {while (true) advance(in.readInt()); }
+			catch (IOException ioe) {}
+			synchronized (this)
+				{
+					closed = true;
+					notifyAll();
+				}
+		}
+
+
+	/** Takes a 32-bit acknowledgment as an advance over the last one; repeated or older ones are ignored. */
+	private synchronized void advance(int ack)
+		{
+			int delta = ack - (int) acked;
+			if (delta > 0) acked += delta;
+			any = true;
+			notifyAll();
+		}
+
+
+	/** @return the acknowledged position in the file */
+	synchronized long getAcked() {return acked; }
+
+	/** @return true if the partner has sent at least one acknowledgment */
+	synchronized boolean hasAcked() {return any; }
+
+	/** @return true if the partner has closed the connection */
+	synchronized boolean isClosed() {return closed; }
+
+
+	/**
+	  * Waits until the given position is acknowledged, the partner closes the connection or the time is up.
+	  * @param position the position to wait for
+	  * @param millis the longest time to wait
+	  * @return the acknowledged position
+	  */
+	synchronized long awaitAck(long position, long millis) throws InterruptedIOException
+		{
+			long deadline = System.currentTimeMillis() + millis;
+			try
+				{
+					for (long left = millis; acked < position && !closed && left > 0; left = deadline - System.currentTimeMillis()) wait(left);
+				}
+			catch (InterruptedException ie) {throw new InterruptedIOException("DCC transfer interrupted"); }
+			return acked;
+		}
+
+
+	/**
+	  * Waits until the partner closes the connection or the time is up.
+	  * @param millis the longest time to wait
+	  */
+	synchronized void awaitClose(long millis) throws InterruptedIOException
+		{
+			awaitAck(Long.MAX_VALUE, millis);
+		}
+}
@@ -22,6 +22,8 @@ package fish.robo.nova.netlinks;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import fish.robo.nova.*;
 import fish.robo.nova.guis.NovaTextStyles;
 
@@ -32,9 +34,26 @@ import fish.robo.nova.guis.NovaTextStyles;
   */
 public class DCCLinker extends Thread
 {
+	/** the largest number of bytes handed to FileChannel.transferTo() at once */
+	private static final int TRANSFER_CHUNK = 1 << 20;
+	/** milliseconds to wait for the acknowledgment of the whole file before the connection is closed */
+	private static final int FINAL_ACK_TIMEOUT = 30000;
+	/** milliseconds to wait with a full window; a partner that has not acknowledged anything by then never does */
+	private static final int ACK_STALL = 5000;
+	/** the size of the buffer that collects received bytes for one positional file write */
+	private static final int RECEIVE_BUFFER = 256 << 10;
+	/** milliseconds without incoming bytes after which the partner is taken to wait for an acknowledgment */
+	private static final int PAUSE_MILLIS = 20;
+
 	private DCCManager dccManager;
 	private NovaManager manager;
+	/** limits the bandwidth of file transfers */
+	private final DCCScheduler scheduler = DCCScheduler.getShared();
 	private Socket dccSocket;
+	/** the channel of a file transfer connection; dccSocket is its socket */
+	private SocketChannel fileLink;
+	/** the server of an own DCC SEND offer while it waits for the partner, null otherwise; closed by shutDown() */
+	private volatile ServerSocketChannel offerServer;
 	private DataOutputStream toChatPartner; // output stream to chat partner
 
 
@@ -134,47 +153,98 @@ public class DCCLinker extends Thread
 		}
 
 
-	/**
-	  * Continuously listens for input from the other side.
-	  * Displays incoming messages on user interface or relays incoming bytes to manager.
-	  */
+	/** Connects the file transfer, then transfers the file. */
 	private void runFileLink()
 		{
-			DataOutputStream toPartner; // network output stream
-			DataInputStream byteFromPartner; // network input stream
+			if (openFileLink()) transferFile();
+		}
 
-			// get packet size
-			int packet_size;
-			try {packet_size = Integer.parseInt(manager.getEnvironment().getFirstTagLine("packet-size ").substring(12).trim()); }
-			catch (NumberFormatException nfe) {packet_size = 512; }
 
+	/**
+	  * Makes the connection of a file transfer. For a DCC SEND of the local user, the offer is sent and
+	  * the partner is waited for, up to DCCRegistry.OFFER_TIMEOUT; so this is not done on a transfer worker.
+	  * @return true if the connection is made, also if it was made before
+	  */
+	boolean openFileLink()
+		{
+			if (fileLink != null) return true;
+			// the connection is a blocking SocketChannel, so that files can be sent with FileChannel.transferTo()
 			if (dccManager.isLocallyInitiated())
 				{
-					ServerSocket dccServerSocket;
+					ServerSocketChannel dccServer;
 
 					// set up DCC server
-					try {dccServerSocket = new ServerSocket(0); }
-					catch (Exception e) {return; }
+					try
+						{
+							dccServer = ServerSocketChannel.open();
+							dccServer.bind(new InetSocketAddress(0));
+							dccServer.socket().setSoTimeout((int) DCCRegistry.OFFER_TIMEOUT);
+						}
+					catch (Exception e) {return false; }
+					offerServer = dccServer;
+					// a DCC RESUME from the partner refers to the offer by its port
+					dccManager.setPort(dccServer.socket().getLocalPort());
+					DCCRegistry.SENDS.register(dccManager);
 					// send PRIVMSG to notify partner
 					try {manager.sendMessage("PRIVMSG " + dccManager.getNickname() + " :\001DCC SEND " + dccManager.getFileName() + " "
-					                      + DCCManager.ip2dcc(dccServerSocket.getInetAddress().getLocalHost().getHostAddress())
-										  + " " + Integer.toString(dccServerSocket.getLocalPort()) + " "
+					                      + DCCManager.ip2dcc(InetAddress.getLocalHost().getHostAddress())
+										  + " " + Integer.toString(dccManager.getPort()) + " "
 										  + Long.toString(dccManager.getFileSize()) + "\001"); }
 					catch (Exception e) {manager.displayMessage("\nERROR while trying to make a DCC connection."); }
 					// NOW WAIT FOR A CONNECTION
-					try {dccSocket = dccServerSocket.accept(); }
-					catch (IOException ioe) {manager.displayMessage("\nERROR while waiting for connection."); }
+					try {fileLink = dccServer.socket().accept().getChannel(); }
+					catch (SocketTimeoutException ste) {manager.displayMessage("\nDCC: " + dccManager.getNickname() + " did not take up the offer of " + dccManager.getFileName() + ".", NovaTextStyles.getNovaStyle()); }
+					catch (IOException ioe)
+						{
+							// a server closed by shutDown() means that the offer was withdrawn
+							if (dccServer.isOpen()) manager.displayMessage("\nERROR while waiting for connection.");
+						}
+					offerServer = null;
+					DCCRegistry.SENDS.remove(dccManager);
 					// server's job is finished -> shut down
-					try {dccServerSocket.close(); }
+					try {dccServer.close(); }
 					catch (IOException ioe) {manager.displayMessage("\nWARNING: Local DCC server could not close."); }
 				}
 			else
 				{
-					try {dccSocket = new Socket(dccManager.getIPAddress(), dccManager.getPort()); }
-					catch (UnknownHostException uhe) {manager.displayMessage("\nERROR: DCC host unknown."); }
+					try {fileLink = SocketChannel.open(new InetSocketAddress(dccManager.getIPAddress(), dccManager.getPort())); }
+					catch (UnresolvedAddressException uae) {manager.displayMessage("\nERROR: DCC host unknown."); }
 					catch (IOException ioe) {manager.displayMessage("\nERROR while trying to connect to DCC host."); }
 				}
-			if (dccSocket == null) return;
+			return fileLink != null;
+		}
+
+
+	/**
+	  * Transfers the file over the connection made by openFileLink(), then closes the connection.
+	  */
+	void transferFile()
+		{
+			DataOutputStream toPartner; // network output stream
+			DataInputStream byteFromPartner; // network input stream
+
+			// get packet size
+			int packet_size;
+			try {packet_size = Integer.parseInt(manager.getEnvironment().getFirstTagLine("packet-size ").substring(12).trim()); }
+			catch (NumberFormatException nfe) {packet_size = 512; }
+			// get the bytes that may be sent ahead of the acknowledgments, 0 for no limit (send-ahead)
+			long send_window = 4 << 20;
+			String window_line = manager.getEnvironment().getFirstTagLine("send-window ");
+			if (window_line != null && window_line.startsWith("send-window "))
+				{
+					try {send_window = Math.max(0, Long.parseLong(window_line.substring(12).trim())); }
+					catch (NumberFormatException nfe) {if (window_line.substring(12).trim().equals("off")) send_window = 0; }
+				}
+			// get the bytes between two acknowledgments when receiving, 0 to acknowledge for every buffer and whenever the socket is drained
+			int ack_every = 0;
+			String ack_line = manager.getEnvironment().getFirstTagLine("ack-every ");
+			if (ack_line != null && ack_line.startsWith("ack-every "))
+				{
+					try {ack_every = Math.max(0, Integer.parseInt(ack_line.substring(10).trim())); }
+					catch (NumberFormatException ignore) {}
+				}
+
+			dccSocket = fileLink.socket();
 			try
 				{
 					toPartner = new DataOutputStream(new BufferedOutputStream(dccSocket.getOutputStream(), packet_size));
@@ -193,10 +263,6 @@ public class DCCLinker extends Thread
 			try
 				{
 					dccManager.makeFileInterface();
-					long fs = dccManager.getFileSize();
-					byte[] raw_data = new byte[packet_size];
-					int num_of_bytes = 0;
-					long total = 0;
 					if (dccManager.isLocallyInitiated()) // SEND
 						{
 							// open file for reading
@@ -206,27 +272,7 @@ public class DCCLinker extends Thread
 									manager.displayMessage("\nDCC Error: could not open " + dccManager.getFileName(), NovaTextStyles.getNovaStyle());
 									return;
 								}
-							if (dccManager.isResume()) theFile.seek(dccManager.getPosition());
-							while(true)
-								{
-									// read data from file
-									if ((num_of_bytes = theFile.read(raw_data)) == -1) break;
-									total += num_of_bytes;
-									/* if (total > fs) break; */
-									// send data packet
-									toPartner.write(raw_data, 0, num_of_bytes);
-									toPartner.flush();
-									// update progress indicator
-									dccManager.updateFileInterface(total);
-									// read acknowledgment (reuse variable "num_of_bytes" for that)
-                                    // ATTENTION: Some IRC clients do not send acknowledgments.
-									num_of_bytes = (int) byteFromPartner.readLong();
-									if (num_of_bytes != total)
-										{
-											manager.displayMessage("\nDCC: Unexpected acknowledgment from " + dccManager.getNickname(), NovaTextStyles.getNovaStyle());
-											continue;
-										}
-								}
+							sendFile(theFile.getChannel(), dccManager.isResume() ? dccManager.getPosition() : 0, byteFromPartner, send_window);
 						}
 					else // GET
 						{
@@ -236,20 +282,7 @@ public class DCCLinker extends Thread
 									manager.displayMessage("\nDCC Error: could not open " + dccManager.getFileName(), NovaTextStyles.getNovaStyle());
 									return;
 								}
-							if (dccManager.isResume()) theFile.seek(dccManager.getPosition());
-							while(true)
-								{
-									// wait for incoming bytes, then write to file
-									num_of_bytes = byteFromPartner.read(raw_data);
-									if (num_of_bytes == -1) break;
-									theFile.write(raw_data, 0, num_of_bytes);
-									total += num_of_bytes;
-									// update progress indicator
-									dccManager.updateFileInterface(total);
-									// send acknowledgment (high byte is sent first)
-									toPartner.writeLong(total);
-									toPartner.flush();
-								}
+							receiveFile(theFile, dccManager.isResume() ? dccManager.getPosition() : 0, ack_every);
 						}
 				}
 			catch (Exception e) {manager.displayMessage("\nAn error has occured while " +
@@ -268,6 +301,163 @@ public class DCCLinker extends Thread
 		}
 
 
+	/**
+	  * Sends a file from the given position with FileChannel.transferTo(), which lets the operating system
+	  * move the bytes from the file to the socket without copying them through the heap.
+	  * The bandwidth is limited by the DCCScheduler. The acknowledgments are read by a DCCAckReader while sending. Up to a window of bytes is sent ahead of them,
+	  * so the socket stays full instead of waiting a round trip per packet.
+	  * With a window of 0 (send-ahead), the acknowledgments are not waited for at all.
+	  * ATTENTION: Some IRC clients do not send acknowledgments. If nothing is acknowledged
+	  * while the first window is waiting, the rest of the file is sent ahead.
+	  * After the last byte, the acknowledgment of the whole file, or the close of a partner that does not acknowledge,
+	  * is awaited, so that closing the socket does not cut off data that the partner has not read yet.
+	  * @param file the file to be sent
+	  * @param position the position to start from, non-zero for DCC RESUME
+	  * @param acks the input stream of the connection
+	  * @param window the bytes that may be sent ahead of the acknowledgments, 0 for no limit
+	  */
+	private void sendFile(FileChannel file, long position, DataInputStream acks, long window) throws IOException
+		{
+			long end = file.size();
+			DCCAckReader ackReader = new DCCAckReader(acks, position);
+			ackReader.start();
+			while (position < end)
+				{
+					if (ackReader.isClosed()) throw new EOFException(dccManager.getNickname() + " closed the connection");
+					long ahead = position - ackReader.getAcked();
+					if (window > 0 && ahead >= window)
+						{
+							ackReader.awaitAck(position - window + 1, ACK_STALL);
+							if (!ackReader.hasAcked() && !ackReader.isClosed())
+								{
+									manager.displayMessage("\nDCC: " + dccManager.getNickname() + " does not acknowledge, sending ahead.", NovaTextStyles.getNovaStyle());
+									window = 0;
+								}
+							continue;
+						}
+					long chunk = Math.min(TRANSFER_CHUNK, end - position);
+					if (window > 0) chunk = Math.min(chunk, window - ahead);
+					chunk = scheduler.acquire(dccManager.getNickname(), chunk);
+					long sent = file.transferTo(position, chunk, fileLink);
+					scheduler.release(dccManager.getNickname(), chunk - Math.max(sent, 0));
+					if (sent <= 0) break; // the file was truncated while sending
+					position += sent;
+					dccManager.updateFileInterface(position);
+				}
+			if (window > 0 && ackReader.hasAcked()) ackReader.awaitAck(position, FINAL_ACK_TIMEOUT);
+			else ackReader.awaitClose(FINAL_ACK_TIMEOUT);
+		}
+
+
+	/**
+	  * Receives a file with positional FileChannel writes of large buffers, as fast as the DCCScheduler allows.
+	  * The file is first extended to the announced size and is cut back to the received bytes if the transfer ends early.
+	  * Extending makes a sparse file on most file systems and reserves no space, so the free space
+	  * is checked before anything is received, and a full disk is found at the start instead of in the middle.
+	  * Acknowledgments are 32-bit positions in network byte order, none for TSEND.
+	  * With ackEvery 0 one is sent for every full buffer and whenever the socket is drained,
+	  * which also suits senders that wait for each packet.
+	  * Otherwise one is sent for every ackEvery bytes, and when the partner pauses, as it may be waiting for one.
+	  * An acknowledgment that the socket does not take is dropped, as the next one covers it.
+	  * @param theFile the file to be written
+	  * @param position the position to start from, non-zero for DCC RESUME
+	  * @param ackEvery the bytes between two acknowledgments, 0 to acknowledge for every buffer and whenever the socket is drained
+	  */
+	private void receiveFile(RandomAccessFile theFile, long position, int ackEvery) throws IOException
+		{
+			long end = dccManager.getFileSize();
+			FileChannel file = theFile.getChannel();
+			long usable = new File(dccManager.getFileName()).getAbsoluteFile().getParentFile().getUsableSpace();
+			// 0 means that the free space is not known
+			if (usable > 0 && end - position > usable)
+				{
+					manager.displayMessage("\nDCC Error: not enough disk space for " + dccManager.getFileName() + " ("
+					                       + ((end - position) >> 10) + " KB needed, " + (usable >> 10) + " KB free)", NovaTextStyles.getNovaStyle());
+					return;
+				}
+			if (end > file.size()) theFile.setLength(end);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER);
+			ByteBuffer ack = ByteBuffer.allocate(4);
+			ack.flip();
+			long received = position, written = position, acked = position;
+			try
+				{
+					fileLink.configureBlocking(false);
+					try (Selector selector = Selector.open())
+						{
+							fileLink.register(selector, SelectionKey.OP_READ);
+							while (end <= 0 || received < end)
+								{
+									long allowed = scheduler.acquire(dccManager.getNickname(), buffer.remaining());
+									buffer.limit(buffer.position() + (int) allowed);
+									int n = fileLink.read(buffer);
+									buffer.limit(buffer.capacity());
+									scheduler.release(dccManager.getNickname(), allowed - Math.max(n, 0));
+									if (n < 0) break;
+									received += n;
+									boolean flushed = !buffer.hasRemaining();
+									if (flushed)
+										{
+											written = writeAt(file, buffer, written);
+											dccManager.updateFileInterface(written);
+										}
+									boolean drained = (n == 0);
+									if (drained && ackEvery > 0)
+										{
+											// a pause of the partner counts as drained
+											drained = (selector.select(PAUSE_MILLIS) == 0);
+											selector.selectedKeys().clear();
+										}
+									if (!dccManager.isTurbo() && received > acked && (((ackEvery > 0) ? (received - acked >= ackEvery) : flushed) || drained))
+										{
+											if (ack.hasRemaining()) fileLink.write(ack);
+											if (!ack.hasRemaining())
+												{
+													ack.clear();
+													ack.putInt((int) received).flip();
+													fileLink.write(ack);
+												}
+											acked = received;
+										}
+									if (n == 0)
+										{
+											selector.select(1000);
+											selector.selectedKeys().clear();
+										}
+								}
+							written = writeAt(file, buffer, written);
+						}
+					// the acknowledgment of the whole file; the selector is closed, so the channel can block again
+					fileLink.configureBlocking(true);
+					if (!dccManager.isTurbo() && received > acked)
+						{
+							while (ack.hasRemaining()) fileLink.write(ack);
+							ack.clear();
+							ack.putInt((int) received).flip();
+							while (ack.hasRemaining()) fileLink.write(ack);
+						}
+				}
+			finally
+				{
+					if (written < end) theFile.setLength(written);
+				}
+			dccManager.updateFileInterface(written);
+		}
+
+
+	/**
+	  * Writes the collected bytes to the file and empties the buffer.
+	  * @return the position after the written bytes
+	  */
+	private static long writeAt(FileChannel file, ByteBuffer buffer, long position) throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining()) position += file.write(buffer, position);
+			buffer.clear();
+			return position;
+		}
+
+
 	/**
 	  * Sends a character string to the DCC CHAT partner.
 	  * @param message the message to be sent
@@ -284,10 +474,13 @@ public class DCCLinker extends Thread
 			catch (IOException ioe) {dccManager.displayInternalMessage("An error occured while sending your message."); }
 		}
 
+	/** Closes the connection, or withdraws an own offer that is still waiting for the partner. */
 	public void shutDown()
 		{
 			try
 				{
+					ServerSocketChannel server = offerServer;
+					if (server != null) server.close();
 					if (dccSocket != null) dccSocket.close();
 					if (toChatPartner != null) toChatPartner.close();
 				}
@@ -0,0 +1,305 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import fish.robo.nova.*;
+
+/**
+  * Runs the DCC file transfers of all sessions on a bounded pool of workers and limits their bandwidth,
+  * so that many transfers do not saturate the uplink and starve the server connections into ping timeouts.
+  * Transfers beyond the number of workers wait in a queue. DCC CHAT sessions are not queued,
+  * and neither is the wait of an own DCC SEND offer for the partner; only its data is.
+  * The bandwidth is shared by token buckets: one for all transfers together and one per nickname.
+  * The settings are read from the environment lines "max-transfers <workers>" and
+  * "bandwidth <total> <per nickname> <reserved for the server>" in bytes per second, 0 for no limit.
+  * The reserved bandwidth is taken from the total, so it only applies if a total is given; the default is "bandwidth 0 0 0".
+  * The bucket of a nickname is dropped when the last transfer with that nickname ends.
+  * @author Kai Berk Oezer
+  */
+public class DCCScheduler
+{
+	/** the fewest bytes a transfer waits for, so that a slow limit does not cut the data into tiny pieces */
+	private static final long MIN_GRANT = 4096;
+	/** the number of finished transfers that are still listed */
+	private static final int KEEP_FINISHED = 20;
+
+	private static DCCScheduler shared = null;
+
+	private final ThreadPoolExecutor workers;
+	/** the queued, active and recently finished transfers, oldest first */
+	private final CopyOnWriteArrayList<DCCTransfer> transfers = new CopyOnWriteArrayList<DCCTransfer>();
+	/** the bucket of all transfers */
+	private Bucket total = new Bucket(0);
+	/** the buckets of the nicknames with queued or active transfers, by lower case nickname */
+	private final HashMap<String,Bucket> perNick = new HashMap<String,Bucket>();
+	/** the rate of a new per-nickname bucket in bytes per second, 0 for no limit */
+	private long nickRate = 0;
+
+
+	/** A token bucket. The tokens are bytes; up to a quarter second of them can be saved up. */
+	private static final class Bucket
+		{
+			/** bytes per second, 0 for no limit */
+			final long rate;
+			final long burst;
+			double tokens;
+			long last = System.nanoTime();
+
+			Bucket(long rate)
+				{
+					this.rate = rate;
+					burst = Math.max(rate / 4, MIN_GRANT);
+					tokens = burst;
+				}
+
+			void refill(long now)
+				{
+					if (rate == 0) return;
+					tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+					last = now;
+				}
+
+			/** @return the bytes that can be taken now, Long.MAX_VALUE without limit */
+			long available() {return (rate == 0) ? Long.MAX_VALUE : (long) tokens; }
+
+			/** @return the nanoseconds until the given bytes are available */
+			long nanosUntil(long bytes) {return (rate == 0 || tokens >= bytes) ? 0 : (long) ((bytes - tokens) * 1e9 / rate) + 1; }
+		}
+
+
+	private DCCScheduler()
+		{
+			workers = new ThreadPoolExecutor(3, 3, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), task -> {
+					Thread t = new Thread(task, "Nova DCC transfer");
+					t.setDaemon(true);
+					return t;
+				});
+			workers.allowCoreThreadTimeOut(true);
+			NovaMetrics.register("dcc.active", () -> count(DCCTransfer.State.ACTIVE));
+			NovaMetrics.register("dcc.queued", () -> count(DCCTransfer.State.QUEUED));
+			// sampled on each read, so the rate is current also while the transfer view is closed
+			NovaMetrics.register("dcc.rate_bps", () -> {long sum = 0; for (DCCTransfer t : transfers) sum += t.sampleRate(); return sum; });
+		}
+
+
+	/** @return the scheduler of this process */
+	public static synchronized DCCScheduler getShared()
+		{
+			if (shared == null) shared = new DCCScheduler();
+			return shared;
+		}
+
+
+	/**
+	  * Reads the number of workers and the bandwidth limits from the environment.
+	  * Without valid lines, three transfers run at once without limit. Running transfers take the new limits at once.
+	  * @param env the environment
+	  */
+	public synchronized void configure(NovaEnvironment env)
+		{
+			int max = 3;
+			String line = env.getFirstTagLine("max-transfers ");
+			if (line != null && line.startsWith("max-transfers "))
+				{
+					try {max = Math.max(1, Integer.parseInt(line.substring(14).trim())); }
+					catch (NumberFormatException ignore) {}
+				}
+			if (max > workers.getMaximumPoolSize())
+				{
+					workers.setMaximumPoolSize(max);
+					workers.setCorePoolSize(max);
+				}
+			else if (max < workers.getMaximumPoolSize())
+				{
+					workers.setCorePoolSize(max);
+					workers.setMaximumPoolSize(max);
+				}
+
+			long all = 0, nick = 0, reserved = 0;
+			line = env.getFirstTagLine("bandwidth ");
+			if (line != null && line.startsWith("bandwidth "))
+				{
+					StringTokenizer tokens = new StringTokenizer(line.substring(10));
+					try
+						{
+							all = Long.parseLong(tokens.nextToken());
+							nick = Long.parseLong(tokens.nextToken());
+							reserved = Long.parseLong(tokens.nextToken());
+						}
+					catch (RuntimeException re) {}
+				}
+			if (all > 0) all = Math.max(all - Math.max(0, reserved), MIN_GRANT);
+			else all = 0;
+			nick = Math.max(0, nick);
+			if (all != total.rate) total = new Bucket(all);
+			if (nick != nickRate)
+				{
+					nickRate = nick;
+					perNick.clear();
+				}
+			notifyAll();
+		}
+
+
+	/**
+	  * Runs a DCC session. A file transfer is queued until a worker is free; a chat starts at once.
+	  * An own DCC SEND offer waits for the partner on a thread of its own, so that unanswered offers
+	  * do not hold the workers; the transfer is queued once the partner has connected.
+	  * @param linker the connection of the session
+	  * @param dcc the session
+	  * @param env the environment, for the limits
+	  */
+	public void submit(DCCLinker linker, DCCManager dcc, NovaEnvironment env)
+		{
+			if (dcc.isChat())
+				{
+					linker.start();
+					return;
+				}
+			configure(env);
+			DCCTransfer transfer = new DCCTransfer(dcc);
+			dcc.setTransfer(transfer);
+			transfers.add(transfer);
+			Runnable work = () -> {
+					transfer.start();
+					try {if (linker.openFileLink()) linker.transferFile(); }
+					finally
+						{
+							transfer.finish();
+							forgetFinished();
+						}
+				};
+			if (!dcc.isLocallyInitiated())
+				{
+					workers.execute(work);
+					return;
+				}
+			Thread offer = new Thread(() -> {
+					if (linker.openFileLink()) workers.execute(work);
+					else
+						{
+							transfer.finish();
+							forgetFinished();
+						}
+				}, "Nova DCC offer");
+			offer.setDaemon(true);
+			offer.start();
+		}
+
+
+	/** @return the queued, active and recently finished transfers, oldest first */
+	public List<DCCTransfer> getTransfers() {return Collections.unmodifiableList(transfers); }
+
+
+	/**
+	  * Waits until the limits allow some bytes to be transferred for a nickname and takes them.
+	  * @param nickname the partner of the transfer
+	  * @param wanted the most bytes the transfer can use now
+	  * @return the bytes that may be transferred, between 1 and wanted
+	  */
+	public long acquire(String nickname, long wanted) throws InterruptedIOException
+		{
+			if (wanted <= 0) return 0;
+			String key = nickname.toLowerCase(Locale.ROOT);
+			try
+				{
+					synchronized (this)
+						{
+							while (true)
+								{
+									Bucket nick = perNick.get(key);
+									if (nick == null) perNick.put(key, nick = new Bucket(nickRate));
+									long now = System.nanoTime();
+									total.refill(now);
+									nick.refill(now);
+									long granted = Math.min(wanted, Math.min(total.available(), nick.available()));
+									long enough = Math.min(wanted, MIN_GRANT);
+									if (granted >= enough)
+										{
+											if (total.rate != 0) total.tokens -= granted;
+											if (nick.rate != 0) nick.tokens -= granted;
+											return granted;
+										}
+									long nanos = Math.max(total.nanosUntil(enough), nick.nanosUntil(enough));
+									TimeUnit.NANOSECONDS.timedWait(this, Math.max(nanos, 1000000));
+								}
+						}
+				}
+			catch (InterruptedException ie) {throw new InterruptedIOException("DCC transfer interrupted"); }
+		}
+
+
+	/**
+	  * Gives back bytes that were taken but not transferred.
+	  * @param nickname the partner of the transfer
+	  * @param unused the bytes that were not transferred
+	  */
+	public synchronized void release(String nickname, long unused)
+		{
+			if (unused <= 0) return;
+			Bucket nick = perNick.get(nickname.toLowerCase(Locale.ROOT));
+			if (total.rate != 0) total.tokens = Math.min(total.burst, total.tokens + unused);
+			if (nick != null && nick.rate != 0) nick.tokens = Math.min(nick.burst, nick.tokens + unused);
+		}
+
+
+	/** @return the number of transfers in the given state */
+	private long count(DCCTransfer.State state)
+		{
+			long n = 0;
+			for (DCCTransfer t : transfers) if (t.getState() == state) ++n;
+			return n;
+		}
+
+
+	/**
+	  * Removes the oldest finished transfers from the list beyond KEEP_FINISHED,
+	  * and the buckets of the nicknames that have no queued or active transfer left.
+	  */
+	private void forgetFinished()
+		{
+			synchronized (this)
+				{
+					HashSet<String> busy = new HashSet<String>();
+					for (DCCTransfer t : transfers) if (!isDone(t)) busy.add(t.getNickname().toLowerCase(Locale.ROOT));
+					perNick.keySet().retainAll(busy);
+				}
+			synchronized (transfers)
+				{
+					int done = 0;
+					for (DCCTransfer t : transfers) if (isDone(t)) ++done;
+					for (DCCTransfer t : transfers)
+						{
+							if (done <= KEEP_FINISHED) break;
+							if (isDone(t) && transfers.remove(t)) --done;
+						}
+				}
+		}
+
+
+	private static boolean isDone(DCCTransfer t)
+		{
+			return t.getState() == DCCTransfer.State.FINISHED || t.getState() == DCCTransfer.State.FAILED;
+		}
+}
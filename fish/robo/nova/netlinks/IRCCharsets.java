@@ -0,0 +1,232 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import fish.robo.nova.NovaEnvironment;
+
+/**
+  * Decodes and encodes the lines of one server connection.
+  * Incoming lines are decoded as UTF-8. Lines that are not valid UTF-8 are decoded with the legacy charset
+  * of their target (channel, or nickname for private messages), or else of the server, or else windows-1252.
+  * Outgoing lines are encoded with the legacy charset of their target or server if one is set, otherwise as UTF-8.
+  * The legacy charsets come from environment lines like "charset irc.dominet.com.tr ISO-8859-9" or "charset #istanbul ISO-8859-9".
+  * Decoding and encoding are done by the I/O thread only, with one cached decoder and encoder per charset.
+  * @author Kai Berk Oezer
+  */
+public class IRCCharsets
+{
+	public static final Charset DEFAULT_FALLBACK = Charset.forName("windows-1252");
+	/** the longest line that a client may send, without CRLF */
+	public static final int MAX_LINE_BYTES = 510;
+
+	/** the legacy charset of the server, null if none is set */
+	private final Charset serverCharset;
+	/** legacy charsets by lower case channel name or nickname */
+	private final HashMap<String,Charset> targetCharsets;
+
+	// decoding state of the I/O thread
+	private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+	private final HashMap<Charset,CharsetDecoder> legacyDecoders = new HashMap<Charset,CharsetDecoder>();
+	private final CharBuffer chars = CharBuffer.allocate(IRCLineFramer.MAX_LINE_LENGTH);
+
+	// encoding state of the I/O thread
+	private final HashMap<Charset,CharsetEncoder> encoders = new HashMap<Charset,CharsetEncoder>();
+
+
+	/**
+	  * @param serverCharset the legacy charset of the server or null
+	  * @param targetCharsets legacy charsets by lower case channel name or nickname
+	  */
+	public IRCCharsets(Charset serverCharset, Map<String,Charset> targetCharsets)
+		{
+			this.serverCharset = serverCharset;
+			this.targetCharsets = new HashMap<String,Charset>(targetCharsets);
+		}
+
+
+	/**
+	  * Reads the "charset" lines of the environment that apply to a server.
+	  * Lines naming an unknown charset are ignored.
+	  * @param env the environment
+	  * @param serverAddress the address of the server
+	  */
+	public static IRCCharsets fromEnvironment(NovaEnvironment env, String serverAddress)
+		{
+			Charset server = null;
+			HashMap<String,Charset> targets = new HashMap<String,Charset>();
+			for (String line : env.getAllTagLines("charset "))
+				{
+					StringTokenizer tokens = new StringTokenizer(line.substring(8));
+					if (tokens.countTokens() < 2) continue;
+					String name = tokens.nextToken();
+					Charset cs;
+					try {cs = Charset.forName(tokens.nextToken()); }
+					catch (IllegalArgumentException iae) {continue; }
+					if (name.equalsIgnoreCase(serverAddress)) server = cs;
+					else targets.put(name.toLowerCase(Locale.ROOT), cs);
+				}
+			return new IRCCharsets(server, targets);
+		}
+
+
+	/**
+	  * Decodes an incoming line. Called by the I/O thread only.
+	  * @param buffer holds the line
+	  * @param offset the start of the line
+	  * @param length the length of the line in bytes
+	  */
+	public String decode(byte[] buffer, int offset, int length)
+		{
+			// pure ASCII is the same in all supported charsets
+			int k = offset, end = offset + length;
+			while (k < end && buffer[k] >= 0) ++k;
+			if (k == end) return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+			ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+			chars.clear();
+			utf8.reset();
+			if (!utf8.decode(in, chars, true).isError() && !utf8.flush(chars).isError())
+				{
+					chars.flip();
+					return chars.toString();
+				}
+			Charset legacy = legacyFor(findTarget(buffer, offset, end));
+			CharsetDecoder decoder = legacyDecoders.get(legacy);
+			if (decoder == null)
+				{
+					decoder = legacy.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+					legacyDecoders.put(legacy, decoder);
+				}
+			in = ByteBuffer.wrap(buffer, offset, length);
+			chars.clear();
+			decoder.reset();
+			decoder.decode(in, chars, true);
+			decoder.flush(chars);
+			chars.flip();
+			return chars.toString();
+		}
+
+
+	/**
+	  * Encodes an outgoing line straight into the send buffer and appends CRLF. Called by the I/O thread only.
+	  * A line longer than MAX_LINE_BYTES, or one that does not fit into an empty buffer,
+	  * is cut after the last whole character that fits.
+	  * @param line the line without CRLF
+	  * @param out the send buffer, in write mode
+	  * @return false if the line does not fit into the remaining space; the buffer is then left as it was
+	  */
+	public boolean encode(String line, ByteBuffer out)
+		{
+			int start = out.position(), limit = out.limit();
+			if (limit - start < 2) return false;
+			int end = Math.min(limit, start + MAX_LINE_BYTES + 2);
+			CharsetEncoder encoder = encoderFor(charsetOf(line));
+			out.limit(end - 2);
+			encoder.reset();
+			CoderResult result = encoder.encode(CharBuffer.wrap(line), out, true);
+			if (!result.isOverflow()) result = encoder.flush(out);
+			out.limit(limit);
+			if (result.isOverflow() && start > 0 && end < start + MAX_LINE_BYTES + 2)
+				{
+					out.position(start);
+					return false;
+				}
+			out.put((byte) '\r').put((byte) '\n');
+			return true;
+		}
+
+
+	/** @return the cached encoder of a charset, which replaces what it cannot encode */
+	private CharsetEncoder encoderFor(Charset cs)
+		{
+			CharsetEncoder encoder = encoders.get(cs);
+			if (encoder == null)
+				{
+					encoder = cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+					encoders.put(cs, encoder);
+				}
+			return encoder;
+		}
+
+
+	/** @return the legacy charset for a target, or of the server, or the default fallback */
+	public Charset legacyFor(String target)
+		{
+			Charset cs = (target == null) ? null : targetCharsets.get(target.toLowerCase(Locale.ROOT));
+			if (cs == null) cs = serverCharset;
+			return (cs == null) ? DEFAULT_FALLBACK : cs;
+		}
+
+
+	/** @return the charset for an outgoing line: the legacy charset of its target or server if set, UTF-8 otherwise */
+	private Charset charsetOf(String line)
+		{
+			int start = line.indexOf(' ') + 1;
+			if (start > 0 && !targetCharsets.isEmpty())
+				{
+					int end = line.indexOf(' ', start);
+					int length = ((end < 0) ? line.length() : end) - start;
+					// the targets with a charset are few, so they are compared in place instead of cutting out the target
+					for (Map.Entry<String,Charset> target : targetCharsets.entrySet())
+						{
+							String name = target.getKey();
+							if (name.length() == length && line.regionMatches(true, start, name, 0, length)) return target.getValue();
+						}
+				}
+			return (serverCharset == null) ? StandardCharsets.UTF_8 : serverCharset;
+		}
+
+
+	/**
+	  * Finds the target of an incoming line without decoding it: the first parameter after the command,
+	  * or the nickname of the sender if that parameter is not a channel.
+	  * @return the target or null
+	  */
+	private static String findTarget(byte[] b, int k, int end)
+		{
+			if (k < end && b[k] == '@') k = skipWord(b, k, end); // tags
+			int nickStart = -1, nickEnd = -1;
+			if (k < end && b[k] == ':')
+				{
+					nickStart = k + 1;
+					nickEnd = nickStart;
+					while (nickEnd < end && b[nickEnd] != '!' && b[nickEnd] != ' ') ++nickEnd;
+					k = skipWord(b, k, end);
+				}
+			k = skipWord(b, k, end); // command
+			if (k >= end) return null;
+			int start = k;
+			while (k < end && b[k] != ' ') ++k;
+			if (k > start && "#&+!".indexOf(b[start]) >= 0) return new String(b, start, k - start, StandardCharsets.ISO_8859_1);
+			return (nickStart < 0) ? null : new String(b, nickStart, nickEnd - nickStart, StandardCharsets.ISO_8859_1);
+		}
+
+	/** @return the index after the word at k and the spaces that follow it */
+	private static int skipWord(byte[] b, int k, int end)
+		{
+			while (k < end && b[k] != ' ') ++k;
+			while (k < end && b[k] == ' ') ++k;
+			return k;
+		}
+}
@@ -0,0 +1,94 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.nio.ByteBuffer;
+
+/**
+  * Splits the bytes coming from an IRC server into lines.
+  * A line ends with LF; a CR before the LF is removed. Lines are passed on as bytes, before any character decoding.
+  * Lines longer than the maximum length are cut, and the rest up to the next LF is dropped.
+  * @author Kai Berk Oezer
+  */
+public class IRCLineFramer
+{
+	/** Receives the complete lines. */
+	public interface LineListener
+		{
+			/**
+			  * @param buffer holds the line; only valid during the call
+			  * @param offset the start of the line in the buffer
+			  * @param length the length of the line, without CR and LF
+			  */
+			public void lineReceived(byte[] buffer, int offset, int length);
+		}
+
+	/** enough for 512 bytes of message plus 8191 bytes of IRCv3 tags */
+	public static final int MAX_LINE_LENGTH = 8704;
+
+	private final LineListener listener;
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+	/** the number of bytes of the current, incomplete line */
+	private int length = 0;
+	/** true while the rest of a too long line is dropped */
+	private boolean overflow = false;
+
+
+	public IRCLineFramer(LineListener listener) {this.listener = listener; }
+
+
+	/**
+	  * Consumes all remaining bytes of the buffer and passes on each completed line.
+	  * @param in a buffer ready to be read
+	  */
+	public void feed(ByteBuffer in)
+		{
+			while (in.hasRemaining())
+				{
+					byte b = in.get();
+					if (b == '\n')
+						{
+							int end = length;
+							if (end > 0 && line[end - 1] == '\r') --end;
+							length = 0;
+							if (!overflow && end > 0) listener.lineReceived(line, 0, end);
+							overflow = false;
+						}
+					else if (overflow) continue;
+					else if (length < MAX_LINE_LENGTH) line[length++] = b;
+					else
+						{
+							// pass on the cut line now and drop the rest
+							overflow = true;
+							listener.lineReceived(line, 0, length);
+							length = 0;
+						}
+				}
+		}
+
+
+	/** Forgets the incomplete line. Called when a connection is closed. */
+	public void reset()
+		{
+			length = 0;
+			overflow = false;
+		}
+}
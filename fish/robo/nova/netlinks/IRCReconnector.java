@@ -0,0 +1,196 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.util.*;
+import fish.robo.nova.IRCServerItem;
+import fish.robo.nova.NovaEnvironment;
+
+/**
+  * Decides when and where to reconnect after a connection broke down.
+  * The delay doubles with every failed attempt, from the first delay up to the maximum delay,
+  * and is jittered between half and the full value, so that many clients that lost the same server
+  * do not come back at the same moment.
+  * The first attempt goes to the server that was lost, the following ones rotate over the known servers
+  * of the same network. Servers of a network are the "server" lines of the environment with the same
+  * "network=<name>" option, or else with the same first word of the name and the same domain of the address,
+  * e.g. "EFnet-US-CA" and "EFnet-EU-SE" at efnet.net. A server whose network is not known that way is never
+  * rotated to or from, so that the channels and the SASL account of one network are not sent to another.
+  * The settings are read from the environment line "reconnect <first delay> <maximum delay>" (milliseconds)
+  * or "reconnect off".
+  * @author Kai Berk Oezer
+  */
+public class IRCReconnector
+{
+	/** the addresses of the servers to try, the lost server first */
+	private final ArrayList<String> addresses = new ArrayList<String>();
+	/** the port numbers of the servers to try */
+	private final ArrayList<Integer> ports = new ArrayList<Integer>();
+	/** true for the servers that are connected to with TLS */
+	private final ArrayList<Boolean> secure = new ArrayList<Boolean>();
+	/** the delay of the first attempt in milliseconds, 0 if reconnecting is turned off */
+	private final long firstDelay;
+	/** the longest delay between two attempts in milliseconds */
+	private final long maxDelay;
+	private final Random random = new Random();
+	/** the number of attempts since the last successful registration */
+	private int attempts = 0;
+	/** the position of the current server in the rotation */
+	private int current = 0;
+
+
+	/**
+	  * @param address the address of the server that the user connected to
+	  * @param port the port number of that server
+	  * @param useTLS true if the connection to that server uses TLS
+	  * @param firstDelay the delay of the first attempt in milliseconds, 0 to turn reconnecting off
+	  * @param maxDelay the longest delay between two attempts in milliseconds
+	  */
+	public IRCReconnector(String address, int port, boolean useTLS, long firstDelay, long maxDelay)
+		{
+			addServer(address, port, useTLS);
+			this.firstDelay = Math.max(0, firstDelay);
+			this.maxDelay = Math.max(this.firstDelay, maxDelay);
+		}
+
+
+	/**
+	  * Reads the settings and the servers of the network from the environment.
+	  * Without a valid "reconnect" line, the first attempt is made after 2 seconds and attempts are at most 5 minutes apart.
+	  * @param env the environment
+	  * @param address the address of the server that the user connected to
+	  * @param port the port number of that server
+	  * @param useTLS true if the connection to that server uses TLS
+	  */
+	public static IRCReconnector fromEnvironment(NovaEnvironment env, String address, int port, boolean useTLS)
+		{
+			long first = 2000, max = 300000;
+			String line = env.getFirstTagLine("reconnect ");
+			if (line != null && line.startsWith("reconnect "))
+				{
+					StringTokenizer tokens = new StringTokenizer(line.substring(10));
+					try
+						{
+							String value = tokens.nextToken();
+							if (value.equals("off")) first = 0;
+							else
+								{
+									first = Long.parseLong(value);
+									max = Long.parseLong(tokens.nextToken());
+								}
+						}
+					catch (RuntimeException re) {first = 2000; max = 300000; }
+				}
+			IRCReconnector reconnector = new IRCReconnector(address, port, useTLS, first, max);
+
+			// find the network of the server, then add the other servers of that network
+			List<IRCServerItem> servers = IRCServerItem.fromEnvironment(env);
+			IRCServerItem lost = IRCServerItem.find(env, address);
+			String network = (lost != null) ? networkOf(lost) : null;
+			if (network == null) return reconnector;
+			for (IRCServerItem server : servers)
+				{
+					if (server.getAddress().equalsIgnoreCase(address) || !network.equals(networkOf(server))) continue;
+					reconnector.addServer(server.getAddress(), server.getPort(), server.isSecure());
+				}
+			return reconnector;
+		}
+
+
+	/**
+	  * The network is the first word of the name that is longer than a region code, and the domain of the address.
+	  * So "EFnet-US-CA us.rr.efnet.net" and the older region-first form "US-EFnet eu.rr.efnet.net" are both "efnet@efnet.net".
+	  * @return the network of a server entry, or null if it is not known
+	  */
+	static String networkOf(IRCServerItem server)
+		{
+			String network = server.getNetwork();
+			if (network != null) return network;
+			String domain = domainOf(server.getAddress());
+			if (domain == null) return null;
+			// words of two letters are regions, e.g. "US" or "EU", and name no network
+			for (String word : server.getName().split("-"))
+				{
+					if (word.length() > 2) return word.toLowerCase(Locale.ROOT) + '@' + domain;
+				}
+			return null;
+		}
+
+
+	/**
+	  * @return the registered domain of a host name, e.g. "dal.net" for "irc.eu.dal.net" and "zanet.org.za"
+	  *         for "is.zanet.org.za", or null for an IP address
+	  */
+	static String domainOf(String host)
+		{
+			String[] labels = host.toLowerCase(Locale.ROOT).split("\\.");
+			int n = labels.length;
+			if (n < 2 || Character.isDigit(labels[n - 1].charAt(0))) return null;
+			// below a country code, a short second level like "org.za" or "com.tr" is not yet a registered domain
+			int kept = (n > 2 && labels[n - 1].length() == 2 && labels[n - 2].length() <= 3) ? 3 : 2;
+			return String.join(".", Arrays.asList(labels).subList(n - kept, n));
+		}
+
+
+	/** Adds a server to the end of the rotation. */
+	public synchronized void addServer(String address, int port, boolean useTLS)
+		{
+			addresses.add(address);
+			ports.add(port);
+			secure.add(useTLS);
+		}
+
+
+	/** @return false if reconnecting is turned off */
+	public boolean isEnabled() {return firstDelay > 0; }
+
+
+	/**
+	  * Prepares the next attempt: moves to the next server of the rotation, except for the first attempt,
+	  * and computes the delay.
+	  * @return the milliseconds to wait before the attempt
+	  */
+	public synchronized long nextAttempt()
+		{
+			if (attempts > 0) current = (current + 1) % addresses.size();
+			long delay = firstDelay << Math.min(attempts, 30);
+			if (delay <= 0 || delay > maxDelay) delay = maxDelay;
+			++attempts;
+			return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+		}
+
+
+	/** @return the address of the server of the next attempt */
+	public synchronized String getAddress() {return addresses.get(current); }
+
+	/** @return the port number of the server of the next attempt */
+	public synchronized int getPort() {return ports.get(current); }
+
+	/** @return true if the connection of the next attempt uses TLS */
+	public synchronized boolean isSecure() {return secure.get(current); }
+
+	/** @return the number of attempts since the last successful registration */
+	public synchronized int getAttempts() {return attempts; }
+
+
+	/** Called when the client is registered with a server. The next connection loss starts with the first delay again. */
+	public synchronized void reset() {attempts = 0; }
+}
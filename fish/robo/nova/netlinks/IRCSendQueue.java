@@ -0,0 +1,190 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+  * The lines waiting to be sent to an IRC server, by priority, with flood control.
+  * Lines are taken out by priority: URGENT (PING, PONG, QUIT and the login) before NORMAL (everything the user sends)
+  * before LOW (automatic CTCP replies). Lines of the same priority keep their order.
+  * A token bucket paces NORMAL and LOW lines like the penalty model of IRC servers:
+  * each line costs one token plus one for every 120 bytes, and tokens come back at a fixed interval
+  * up to the burst size. URGENT lines are never held back, but they are charged too.
+  * Lines can be queued by any thread; they are taken out by the I/O thread only, which encodes them
+  * straight into its send buffer.
+  * @author Kai Berk Oezer
+  */
+public class IRCSendQueue
+{
+	public static final int URGENT = 0;
+	public static final int NORMAL = 1;
+	public static final int LOW = 2;
+
+	/** a line that waits to be sent */
+	private static final class Line
+		{
+			final String text;
+			final long queued = System.nanoTime();
+			Line(String text) {this.text = text; }
+		}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ConcurrentLinkedQueue<Line>[] queues = new ConcurrentLinkedQueue[] {new ConcurrentLinkedQueue<Line>(), new ConcurrentLinkedQueue<Line>(), new ConcurrentLinkedQueue<Line>()};
+	private final AtomicInteger[] depth = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+
+	// token bucket, only used by the I/O thread
+	private volatile int burst = 5;
+	private volatile long interval = 2000; // milliseconds per token
+	private double tokens = 5;
+	private long lastRefill = System.nanoTime();
+
+	// metrics, written by the I/O thread
+	private volatile long sent = 0;
+	private volatile long totalWait = 0; // nanoseconds
+	private volatile long maxWait = 0; // nanoseconds
+
+
+	/**
+	  * Sets the flood control. The bucket is filled up again.
+	  * @param burst the number of tokens that can be spent at once, 0 to switch flood control off
+	  * @param intervalMillis the milliseconds after which a spent token comes back
+	  */
+	public synchronized void setFloodControl(int burst, long intervalMillis)
+		{
+			this.burst = Math.max(0, burst);
+			interval = Math.max(1, intervalMillis);
+			tokens = this.burst;
+			lastRefill = System.nanoTime();
+		}
+
+
+	/**
+	  * Chooses the priority of a line by its command.
+	  * @param line an IRC line without CRLF
+	  */
+	public static int priorityOf(String line)
+		{
+			if (line.startsWith("PONG") || line.startsWith("PING") || line.startsWith("QUIT") || line.startsWith("PASS") || line.startsWith("NICK ")
+			    || line.startsWith("USER ") || line.startsWith("CAP ") || line.startsWith("AUTHENTICATE ")) return URGENT;
+			// CTCP replies are notices whose text starts with \001
+			if (line.startsWith("NOTICE ") && line.indexOf(" :\001") > 0) return LOW;
+			return NORMAL;
+		}
+
+
+	/**
+	  * @param line the line, without CRLF
+	  * @param priority URGENT, NORMAL or LOW
+	  */
+	public void add(String line, int priority)
+		{
+			queues[priority].add(new Line(line));
+			depth[priority].incrementAndGet();
+		}
+
+
+	/** @return true if no lines are waiting */
+	public boolean isEmpty() {return queues[URGENT].isEmpty() && queues[NORMAL].isEmpty() && queues[LOW].isEmpty(); }
+
+	/** @return true if URGENT lines are waiting */
+	public boolean hasUrgent() {return !queues[URGENT].isEmpty(); }
+
+
+	/** Drops all waiting lines. */
+	public void clear()
+		{
+			for (int p = URGENT; p <= LOW; ++p)
+				{
+					queues[p].clear();
+					depth[p].set(0);
+				}
+		}
+
+
+	/**
+	  * Encodes as many lines into the buffer as fit and as the flood control allows. Called by the I/O thread.
+	  * Lines that do not fit in the remaining space stay in the queue; a line longer than the whole buffer is cut.
+	  * @param out the buffer that collects the bytes for one socket write
+	  * @param charsets encodes the lines
+	  * @param urgentOnly true if only URGENT lines may be taken, e.g. while disconnecting
+	  * @return the milliseconds until flood control allows the next line, 0 if the queue is empty or the buffer is full
+	  */
+	public synchronized long drainTo(ByteBuffer out, IRCCharsets charsets, boolean urgentOnly)
+		{
+			refill();
+			for (int p = URGENT; p <= (urgentOnly ? URGENT : LOW); ++p)
+				{
+					Line line;
+					while ((line = queues[p].peek()) != null)
+						{
+							int start = out.position();
+							if (!charsets.encode(line.text, out)) return 0; // waits for the next write
+							int size = out.position() - start;
+							// a line that costs more than the whole bucket goes once the bucket is full, instead of never
+							double cost = Math.min(burst, 1 + size / 120);
+							if (p != URGENT && burst > 0 && tokens < cost)
+								{
+									out.position(start);
+									return (long) Math.ceil((cost - tokens) * interval);
+								}
+							if (burst > 0) tokens -= cost;
+							queues[p].poll();
+							depth[p].decrementAndGet();
+							long wait = System.nanoTime() - line.queued;
+							totalWait += wait;
+							if (wait > maxWait) maxWait = wait;
+							++sent;
+						}
+				}
+			return 0;
+		}
+
+
+	private void refill()
+		{
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) / (interval * 1000000.0));
+			lastRefill = now;
+		}
+
+
+	//_______________________________________________________________________________
+	// metrics
+
+
+	/** @return the number of lines waiting */
+	public int getDepth() {return depth[URGENT].get() + depth[NORMAL].get() + depth[LOW].get(); }
+
+	/** @return the number of lines of the given priority waiting */
+	public int getDepth(int priority) {return depth[priority].get(); }
+
+	/** @return the number of lines sent so far */
+	public long getSentCount() {return sent; }
+
+	/** @return the average time a sent line waited in the queue, in milliseconds */
+	public double getAverageWaitMillis() {return (sent == 0) ? 0 : totalWait / 1e6 / sent; }
+
+	/** @return the longest time a sent line waited in the queue, in milliseconds */
+	public double getMaxWaitMillis() {return maxWait / 1e6; }
+}
@@ -0,0 +1,121 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+/**
+  * Counts latencies in buckets whose width grows with the value, like an HDR histogram:
+  * values below 32 microseconds have a bucket each, above that every power of two is split into 16 buckets.
+  * So the memory is fixed and every value is known to within about 6 percent, from microseconds up to about 17 minutes.
+  * Percentiles are read from the bucket counts without keeping the recorded values.
+  * @author Kai Berk Oezer
+  */
+public class LatencyHistogram
+{
+	/** the number of buckets for each power of two */
+	private static final int SUB_BUCKETS = 16;
+	/** values below this limit have a bucket each */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	/** the highest power of two that is counted; larger values go to the last bucket */
+	private static final int MAX_EXPONENT = 29;
+
+	private final long[] counts = new long[LINEAR_LIMIT + (MAX_EXPONENT - 4) * SUB_BUCKETS];
+	private long count = 0;
+	private long total = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+
+	/**
+	  * Counts a value.
+	  * @param micros the latency in microseconds
+	  */
+	public synchronized void record(long micros)
+		{
+			if (micros < 0) micros = 0;
+			++counts[indexOf(micros)];
+			++count;
+			total += micros;
+			if (micros < min) min = micros;
+			if (micros > max) max = micros;
+		}
+
+
+	/** Forgets all values. */
+	public synchronized void reset()
+		{
+			java.util.Arrays.fill(counts, 0);
+			count = total = max = 0;
+			min = Long.MAX_VALUE;
+		}
+
+
+	/** @return the number of recorded values */
+	public synchronized long getCount() {return count; }
+
+	/** @return the smallest value in microseconds, 0 if nothing was recorded */
+	public synchronized long getMin() {return (count == 0) ? 0 : min; }
+
+	/** @return the largest value in microseconds */
+	public synchronized long getMax() {return max; }
+
+	/** @return the average value in microseconds, 0 if nothing was recorded */
+	public synchronized long getMean() {return (count == 0) ? 0 : total / count; }
+
+
+	/**
+	  * @param percentile between 0 and 100, e.g. 99 for the value that 99 percent of the values do not exceed
+	  * @return the value at the percentile in microseconds, the middle of its bucket; 0 if nothing was recorded
+	  */
+	public synchronized long getPercentile(double percentile)
+		{
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+			if (rank < 1) rank = 1;
+			if (rank == count) return max;
+			long seen = 0;
+			for (int i = 0; i < counts.length; ++i)
+				{
+					seen += counts[i];
+					if (seen >= rank) return Math.max(min, Math.min(max, middleOf(i)));
+				}
+			return max;
+		}
+
+
+	/** @return the bucket of a value */
+	private static int indexOf(long value)
+		{
+			if (value < LINEAR_LIMIT) return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			if (exponent > MAX_EXPONENT) return LINEAR_LIMIT + (MAX_EXPONENT - 4) * SUB_BUCKETS - 1;
+			int shift = exponent - 4;
+			return LINEAR_LIMIT + (exponent - 5) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+		}
+
+	/** @return the value in the middle of a bucket */
+	private static long middleOf(int index)
+		{
+			if (index < LINEAR_LIMIT) return index;
+			int exponent = 5 + (index - LINEAR_LIMIT) / SUB_BUCKETS;
+			long lowest = (long) (SUB_BUCKETS + (index - LINEAR_LIMIT) % SUB_BUCKETS) << (exponent - 4);
+			return lowest + (1L << (exponent - 5));
+		}
+}
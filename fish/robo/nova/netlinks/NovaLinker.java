@@ -22,23 +22,82 @@ package fish.robo.nova.netlinks;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
 import fish.robo.nova.*;
 
 /**
   * This class provides the client-server connection for Nova.
+  * The connection is a non-blocking SocketChannel that is serviced by the shared NovaSelector thread.
+  * Incoming bytes are split into lines by an IRCLineFramer and handed to the manager.
+  * Outgoing lines are queued by priority and written whenever the channel can take them and flood control allows.
+  * With TLS the bytes pass through a TLSChannel; the queued login lines are held back until the handshake is complete.
+  * Once registered, the client sends a PING of its own at a fixed interval and records the time to the PONG as lag.
+  * A connection whose PING is not answered within the dead time is closed, so that the manager can reconnect.
   * @author Kai Berk Oezer
   * @version June 1999
   */
-public class NovaLinker extends Thread
+public class NovaLinker implements NovaSelector.Handler, IRCLineFramer.LineListener
 {
+	/** the size of the direct buffer that receives bytes from the server */
+	private static final int READ_BUFFER_SIZE = 16384;
+	/** the size of the direct buffer that collects the queued lines for one socket write */
+	private static final int WRITE_BUFFER_SIZE = 16384;
+
 	/** the manager of the whole IRC client environment */
 	private NovaManager manager;
-	/** the TCP socket connecting to the IRC server */
-	private Socket IRCServer = null;
-	/** the input stream from the server */
-	private BufferedReader fromIRCServer = null;
-	/** the output stream to the server */
-	private DataOutputStream toIRCServer = null;
+	/** the I/O thread servicing the connection */
+	private NovaSelector loop = null;
+	/** the TCP connection to the IRC server, null while not connected */
+	private volatile SocketChannel IRCServer = null;
+	/** the selection key of the connection, only used on the I/O thread */
+	private SelectionKey key = null;
+	/** receives the bytes from the server */
+	private final ByteBuffer fromIRCServer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	/** splits the received bytes into lines */
+	private final IRCLineFramer framer = new IRCLineFramer(this);
+	/** the lines waiting to be sent to the server; they are encoded when they are moved into outgoing */
+	private final IRCSendQueue toIRCServer = new IRCSendQueue();
+	/** the bytes of the current socket write; between writes it holds what the socket did not take */
+	private final ByteBuffer outgoing = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	/** cancels the timer that wakes the writer when flood control allows the next line, null if none is scheduled */
+	private Runnable pacingCancel = null;
+	/** true while a request to watch for writability is pending or active */
+	private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+	/** set by disconnect(): the connection is closed as soon as the queued lines are sent */
+	private volatile boolean closeAfterFlush = false;
+	/** makes sure that the manager is notified only once per connection */
+	private final AtomicBoolean closed = new AtomicBoolean(true);
+	/** milliseconds between the keep-alive PINGs, 0 if no PINGs are sent */
+	private volatile long pingInterval = 30000;
+	/** milliseconds without PONG after which the connection is given up */
+	private volatile long deadAfter = 90000;
+	/** System.nanoTime() of the unanswered keep-alive PING, 0 if none is unanswered */
+	private final AtomicLong pingSent = new AtomicLong(0);
+	/** cancels the timer of the next keep-alive check, null if none is scheduled; only used on the I/O thread */
+	private Runnable pingCancel = null;
+	/** the lag of the last answered PING in microseconds, -1 if none was answered on this connection */
+	private volatile long lastLag = -1;
+	/** the lags of all answered PINGs */
+	private final LatencyHistogram lags = new LatencyHistogram();
+	/** true if the next connection uses TLS */
+	private volatile boolean secure = false;
+	/** the pinned keys of the server, empty to check its certificate */
+	private volatile List<String> pins = java.util.Collections.<String>emptyList();
+	/** the key store with the client certificate and its password, null for none */
+	private volatile String certificate = null, certificatePassword = "";
+	/** the TLS layer of the connection, null for plain connections; only used on the I/O thread */
+	private TLSChannel tls = null;
+	/** true once the TLS handshake of the connection is complete; only used on the I/O thread */
+	private boolean tlsReady = false;
+	/** decodes incoming and encodes outgoing lines */
+	private volatile IRCCharsets charsets = new IRCCharsets(null, java.util.Collections.<String,java.nio.charset.Charset>emptyMap());
 	/** holds the IP address of the IRC server */
 	private String serverAddress = "invalid_address";
 	/** holds the port number of the IRC server */
@@ -49,8 +108,6 @@ public class NovaLinker extends Thread
 	private String nickname = "johnny";
 	/** holds the real name of the user */
 	private String realname = "John Doe";
-	/** controls the link status: link to IRC server is alive as long as check_link is true */
-	private boolean check_link;
 
 	/** @param my_IRC_Manager the manager of the IRC environment */
 	public NovaLinker(NovaManager my_IRC_Manager) {manager = my_IRC_Manager; }
@@ -58,70 +115,58 @@ public class NovaLinker extends Thread
 	/**
 	  * Connects to the IRC server.
 	  * This method must be called after the server address and port number are set.
-	  * It also waits for input from the server and relays it to the managers "incomingMessage" method.
+	  * It resolves the server address and prepares TLS, which may block, and then leaves the connection to the I/O thread.
+	  * Incoming lines are relayed to the manager's receive method.
 	  */
-	public void run()
+	public void connect()
 		{
+			InetSocketAddress address = new InetSocketAddress(serverAddress, portNumber);
+			if (address.isUnresolved())
+				{
+					display("\nError: Host " + serverAddress + " is unknown.");
+					manager.hasDisconnectedFromServer();
+					return;
+				}
+			final SocketChannel channel;
+			SSLEngine engine = null;
 			try
 				{
-					// establish network connection and build I/O streams
-					try
-						{
-							IRCServer = new Socket(serverAddress, portNumber);
-							fromIRCServer = new BufferedReader(new InputStreamReader(IRCServer.getInputStream()));
-							toIRCServer = new DataOutputStream(IRCServer.getOutputStream());
-						}
-					catch (UnknownHostException uhe)
-						{
-							display("\nError: Host " + serverAddress + " is unknown.");
-							cleanUp();
-							return;
-						}
-					catch (IOException ioe)
-						{
-							if (ioe instanceof BindException) display("\nERROR: Can't create a socket for connection!");
-							else if (ioe instanceof ConnectException) display("\nERROR: " + serverAddress + "is not listening!");
-							else display("\nERROR: Could not establish communication with " + serverAddress + "!");
-							cleanUp();
-							return;
-						}
-					display("\nConnection established. Logging in...");
-
-					// login procedure
-					try
-						{
-							// no passworded login supported for now
-              if (!password.equals("<nopass>")) toIRCServer.writeBytes("PASS " + password + "\n");
-							toIRCServer.writeBytes("NICK " + nickname + "\n");
-							String localHost = IRCServer.getLocalAddress().getHostAddress();
-							toIRCServer.writeBytes("USER " + nickname.toLowerCase() + " " + localHost + " " + serverAddress + " :" + realname + "\n");
-							toIRCServer.flush();
-						}
-					catch (IOException ioe)
-						{
-							display("\nCommunications-error while trying to log in.");
-							display("\nDisconnecting...");
-							cleanUp();
-							return;
-						}
-
-					// wait for incoming messages and process them
-					check_link = true; // only a call to disconnect() can set it to false
-					try
-						{
-							while(check_link)
-								{
-									String tempo = fromIRCServer.readLine();
-									if (tempo != null) manager.translate(tempo);
-								}
-						}
-					catch (IOException ignore) {display("\nError: Connection to server broke down!"); }
+					if (secure) engine = TLSChannel.createEngine(serverAddress, portNumber, pins, certificate, certificatePassword);
+					loop = NovaSelector.getShared();
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
 				}
-			catch (ThreadDeath td)
+			catch (GeneralSecurityException gse)
 				{
-					cleanUp();
-					throw(td);
+					display("\nERROR: TLS is not available: " + gse.getMessage());
+					manager.hasDisconnectedFromServer();
+					return;
 				}
+			catch (IOException ioe)
+				{
+					display("\nERROR: Can't create a socket for connection!");
+					manager.hasDisconnectedFromServer();
+					return;
+				}
+			final TLSChannel wrapper = (engine != null) ? new TLSChannel(channel, engine) : null;
+			toIRCServer.clear();
+			outgoing.clear();
+			framer.reset();
+			closeAfterFlush = false;
+			writeRequested.set(false);
+			closed.set(false);
+			IRCServer = channel;
+			loop.execute(() -> {
+					tls = wrapper;
+					tlsReady = false;
+					try
+						{
+							if (channel.connect(address)) key = loop.register(channel, SelectionKey.OP_READ, this);
+							else key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+							if (channel.isConnected()) connected();
+						}
+					catch (IOException ioe) {connectFailed(ioe); }
+				});
 		}
 
 
@@ -145,6 +190,65 @@ public class NovaLinker extends Thread
 
   public void setPassword(String newPassword) {password = newPassword; }
 
+	/**
+	  * Sets whether the connection uses TLS. Takes effect with the next connection.
+	  * @param useTLS true for TLS
+	  * @param pinnedKeys the pinned public keys of the server, e.g. "pin-sha256:...", empty to check the certificate
+	  * @param clientCertificate the file of the key store with the client certificate, null for none
+	  * @param password the password of the key store
+	  */
+	public void setSecure(boolean useTLS, List<String> pinnedKeys, String clientCertificate, String password)
+		{
+			secure = useTLS;
+			pins = pinnedKeys;
+			certificate = clientCertificate;
+			certificatePassword = password;
+		}
+
+	/** @return true if the next connection uses TLS */
+	public boolean isSecure() {return secure; }
+
+	/**
+	  * Sets the flood control of outgoing lines.
+	  * @param burst the number of lines that can be sent at once, 0 for no flood control
+	  * @param intervalMillis the milliseconds after which one more line can be sent
+	  */
+	public void setFloodControl(int burst, long intervalMillis) {toIRCServer.setFloodControl(burst, intervalMillis); }
+
+	/**
+	  * Sets the charsets of the connection. Takes effect with the next connection.
+	  * @param newCharsets the charsets, see IRCCharsets
+	  */
+	public void setCharsets(IRCCharsets newCharsets) {charsets = newCharsets; }
+
+	/** @return the queue of outgoing lines, e.g. for its depth and wait time */
+	public IRCSendQueue getSendQueue() {return toIRCServer; }
+
+	/**
+	  * Sets the keep-alive PINGs. Takes effect with the next registration.
+	  * @param intervalMillis the milliseconds between two PINGs, 0 to send none
+	  * @param deadMillis the milliseconds without PONG after which the connection is closed
+	  */
+	public void setKeepAlive(long intervalMillis, long deadMillis)
+		{
+			pingInterval = Math.max(0, intervalMillis);
+			deadAfter = Math.max(1000, deadMillis);
+		}
+
+	/** @return the lags of the answered keep-alive PINGs of all connections, in microseconds */
+	public LatencyHistogram getLagHistogram() {return lags; }
+
+	/**
+	  * @return the current lag in microseconds: the lag of the last PONG,
+	  *   or the age of the unanswered PING if that is longer; -1 if it is not known
+	  */
+	public long getLag()
+		{
+			long sent = pingSent.get();
+			if (sent == 0) return lastLag;
+			return Math.max(lastLag, (System.nanoTime() - sent) / 1000);
+		}
+
 
 	//_______________________________________________________________________________
 	// functional methods
@@ -152,74 +256,366 @@ public class NovaLinker extends Thread
 
 	/**
 	  * Disconnects gracefully from the server.
-	  * Then, all streams and the socket are closed.
+	  * The QUIT message and other urgent lines are sent, then the connection is closed.
+	  * Lines still held back by flood control are dropped.
 	  */
 	public void disconnect()
 		{
-			check_link = false;
-			try {if (toIRCServer != null) toIRCServer.writeBytes("QUIT :leaving\r\n"); }
-			catch (IOException ioe) {display("\nError! Could not disconnect properly."); }
-			cleanUp();
+			SocketChannel channel = IRCServer;
+			if (channel == null) return;
+			if (channel.isConnected()) queue("QUIT :leaving");
+			closeAfterFlush = true;
+			loop.execute(() -> {if (key == null) cleanUp(); else watchWritable(true); });
 		}
 
 
 	/**
 	  * Sends a message to the server.
 	  * A CRLF (carriage return + line feed) is appended automatically.
+	  * The message is queued and written by the I/O thread, so this method never blocks.
+	  * PING, PONG, QUIT and the login go first, automatic CTCP replies last; see IRCSendQueue.
+	  * The text of a PRIVMSG or NOTICE that would make the line longer than IRCCharsets.MAX_LINE_BYTES
+	  * is sent in several lines; other lines that are too long are cut when they are encoded.
 	  * @param message the message to be sent to the IRC server
 	  */
 	public void sendOut(String message)
 		{
-			if (toIRCServer == null)
+			SocketChannel channel = IRCServer;
+			if (channel == null || closeAfterFlush)
 				{
 					display("\n");
 					display(" ", fish.robo.nova.guis.NovaTextStyles.getMicroIcon1());
 					display(" ERROR: You are not connected to a server.");
 					return;
 				}
-			try {toIRCServer.writeBytes(message + "\r\n"); }
-			catch (IOException ioe) {display("\nError occured while sending message."); }
+			if (utf8Length(message, 0, message.length()) <= IRCCharsets.MAX_LINE_BYTES) queue(message);
+			else for (String line : split(message)) queue(line);
 		}
 
 
 	/**
-	  * Displays text on the main IRC window.
-	  * Used when errors occur or connections are established or closed.
-	  * @param notice the text to be displayed
+	  * Splits the text of a long PRIVMSG or NOTICE into lines of at most IRCCharsets.MAX_LINE_BYTES,
+	  * at a space if there is one in the second half of a piece. The length is counted in UTF-8,
+	  * which is never shorter than the legacy charsets. CTCP messages and other commands are not split.
+	  * @return the lines, or the message alone if it is not split
 	  */
-	private void display(String notice) {if (manager != null) manager.displayMessage(notice);	}
+	static List<String> split(String message)
+		{
+			int text = message.indexOf(" :");
+			if (!(message.startsWith("PRIVMSG ") || message.startsWith("NOTICE ")) || text < 0
+			    || (text + 2 < message.length() && message.charAt(text + 2) == '\001'))
+				return java.util.Collections.singletonList(message);
+			String head = message.substring(0, text + 2);
+			int room = IRCCharsets.MAX_LINE_BYTES - utf8Length(head, 0, head.length());
+			ArrayList<String> lines = new ArrayList<String>();
+			int start = text + 2;
+			while (start < message.length())
+				{
+					int end = start, bytes = 0;
+					while (end < message.length())
+						{
+							int next = end + (Character.isHighSurrogate(message.charAt(end)) && end + 1 < message.length() ? 2 : 1);
+							int size = utf8Length(message, end, next);
+							if (bytes + size > room) break;
+							bytes += size;
+							end = next;
+						}
+					if (end == start) break; // no room for text at all
+					if (end < message.length())
+						{
+							int space = message.lastIndexOf(' ', end - 1);
+							if (space > start + (end - start) / 2) end = space + 1;
+						}
+					lines.add(head + message.substring(start, end));
+					start = end;
+				}
+			return lines.isEmpty() ? java.util.Collections.singletonList(message) : lines;
+		}
+
+
+	/** @return the number of bytes of a part of a String in UTF-8 */
+	private static int utf8Length(String s, int start, int end)
+		{
+			int bytes = 0;
+			for (int i = start; i < end; ++i)
+				{
+					char c = s.charAt(i);
+					if (c < 0x80) bytes += 1;
+					else if (c < 0x800) bytes += 2;
+					else if (Character.isSurrogate(c)) bytes += 2; // a pair is 4 bytes
+					else bytes += 3;
+				}
+			return bytes;
+		}
+
+
+	/** Starts the keep-alive PINGs. Called by the manager when the client is registered with the server. */
+	public void startKeepAlive()
+		{
+			if (pingInterval == 0 || IRCServer == null) return;
+			loop.execute(() -> {
+					if (pingCancel != null) pingCancel.run();
+					pingSent.set(0);
+					pingCancel = loop.schedule(this::keepAlive, pingInterval);
+				});
+		}
 
 
 	/**
-	  * Displays text, with given style, on the main IRC window.
-	  * Used when errors occur or connections are established or closed.
-	  * @param notice the text to be displayed
+	  * Called by the manager for each PONG from the server.
+	  * @param token the last parameter of the PONG
+	  * @return true if the PONG answers the keep-alive PING, false if it answers some other PING, e.g. of the user
 	  */
-	private void display(String notice, javax.swing.text.Style s) {manager.displayMessage(notice, s); }
+	public boolean pongReceived(String token)
+		{
+			if (token == null || !token.startsWith("NOVA")) return false;
+			long sent;
+			try {sent = Long.parseLong(token.substring(4)); }
+			catch (NumberFormatException nfe) {return false; }
+			if (sent == 0 || !pingSent.compareAndSet(sent, 0)) return false;
+			lastLag = (System.nanoTime() - sent) / 1000;
+			lags.record(lastLag);
+			return true;
+		}
 
 
-	/** Closes input/output streams and the socket connection to the server. */
-	private void cleanUp()
+	/**
+	  * Runs on the I/O thread at every keep-alive interval and when the dead time of a PING has passed.
+	  * Sends the next PING if the last one was answered, or closes the connection if it was not answered in time.
+	  */
+	private void keepAlive()
+		{
+			pingCancel = null;
+			if (IRCServer == null || closeAfterFlush) return;
+			long now = System.nanoTime();
+			long sent = pingSent.get();
+			if (sent != 0)
+				{
+					long waited = (now - sent) / 1000000;
+					if (waited >= deadAfter)
+						{
+							display("\nError: No reply from the server for " + (waited / 1000) + " seconds. The connection is dead.");
+							cleanUp();
+							return;
+						}
+					pingCancel = loop.schedule(this::keepAlive, Math.min(pingInterval, deadAfter - waited));
+					return;
+				}
+			if (now == 0) ++now;
+			pingSent.set(now);
+			queue("PING :NOVA" + now);
+			pingCancel = loop.schedule(this::keepAlive, Math.min(pingInterval, deadAfter));
+		}
+
+
+	/** Queues a line and makes sure the I/O thread encodes and writes it. */
+	private void queue(String message)
 		{
+			toIRCServer.add(message, IRCSendQueue.priorityOf(message));
+			if (writeRequested.compareAndSet(false, true)) loop.execute(() -> watchWritable(true));
+		}
+
+
+	//_______________________________________________________________________________
+	// I/O thread
+
+
+	/** Called by the NovaSelector when the connection can be completed, read from or written to. */
+	public void channelReady(SelectionKey readyKey)
+		{
+			SocketChannel channel = (SocketChannel) readyKey.channel();
 			try
 				{
-					if (fromIRCServer != null)
+					if (readyKey.isConnectable())
 						{
-							fromIRCServer.close();
-							fromIRCServer = null;
+							if (!channel.finishConnect()) return;
+							readyKey.interestOps(SelectionKey.OP_READ);
+							connected();
+							return;
 						}
-					if (toIRCServer != null)
+					if (readyKey.isReadable()) read(channel);
+					if (readyKey.isValid() && readyKey.isWritable()) write(channel);
+				}
+			catch (ConnectException ce) {connectFailed(ce); }
+			catch (SSLException se)
+				{
+					display("\nError: TLS failed: " + se.getMessage());
+					cleanUp();
+				}
+			catch (IOException ioe)
+				{
+					display("\nError: Connection to server broke down!");
+					cleanUp();
+				}
+		}
+
+
+	/**
+	  * Sends the capability negotiation and the login lines once the connection is established. See IRCCapabilities.
+	  * With TLS the handshake is started first, and the lines wait in the queue until it is complete.
+	  */
+	private void connected() throws IOException
+		{
+			if (tls != null)
+				{
+					display("\nConnection established. Negotiating TLS...");
+					tls.beginHandshake();
+					if (tls.hasPendingOutput() && writeRequested.compareAndSet(false, true)) watchWritable(true);
+				}
+			else display("\nConnection established. Logging in...");
+			// the server holds back the registration until the capability negotiation ends with CAP END
+			queue("CAP LS 302");
+			if (!password.equals("<nopass>")) queue("PASS " + password);
+			queue("NICK " + nickname);
+			String localHost = IRCServer.socket().getLocalAddress().getHostAddress();
+			queue("USER " + nickname.toLowerCase() + " " + localHost + " " + serverAddress + " :" + realname);
+		}
+
+
+	private void connectFailed(IOException ioe)
+		{
+			if (ioe instanceof BindException) display("\nERROR: Can't create a socket for connection!");
+			else if (ioe instanceof ConnectException) display("\nERROR: " + serverAddress + " is not listening!");
+			else display("\nERROR: Could not establish communication with " + serverAddress + "!");
+			cleanUp();
+		}
+
+
+	/** Reads what is available and hands the complete lines to the manager. */
+	private void read(SocketChannel channel) throws IOException
+		{
+			int n;
+			while ((n = (tls != null) ? tls.read(fromIRCServer) : channel.read(fromIRCServer)) > 0)
+				{
+					fromIRCServer.flip();
+					framer.feed(fromIRCServer);
+					fromIRCServer.clear();
+				}
+			if (n < 0)
+				{
+					display("\nConnection closed by the server.");
+					cleanUp();
+					return;
+				}
+			if (tls == null) return;
+			if (!tlsReady && !tls.isHandshaking())
+				{
+					tlsReady = true;
+					SSLSession session = tls.getSession();
+					display("\nTLS established (" + session.getProtocol() + ", " + session.getCipherSuite() + "). Logging in...");
+				}
+			// the handshake may have left records to send, or may have released the queued lines
+			if ((tls.hasPendingOutput() || (tlsReady && !toIRCServer.isEmpty())) && writeRequested.compareAndSet(false, true)) watchWritable(true);
+		}
+
+
+	/** Called by the framer for each complete line. */
+	public void lineReceived(byte[] buffer, int offset, int length)
+		{
+			manager.receive(charsets.decode(buffer, offset, length));
+		}
+
+
+	/**
+	  * Writes queued lines until the queue is empty, the socket buffer is full or flood control holds the lines back.
+	  * As many lines as allowed are collected into one buffer and written with a single call.
+	  */
+	private void write(SocketChannel channel) throws IOException
+		{
+			if (tls != null)
+				{
+					if (!tls.flush()) return; // the socket buffer is full, wait for the next OP_WRITE
+					if (tls.isHandshaking())
 						{
-							toIRCServer.close();
-							toIRCServer = null;
+							// read() resumes writing when the handshake is complete
+							watchWritable(false);
+							return;
 						}
-					if (IRCServer != null)
+				}
+			long delay = 0;
+			while (true)
+				{
+					delay = toIRCServer.drainTo(outgoing, charsets, closeAfterFlush);
+					outgoing.flip();
+					if (outgoing.hasRemaining())
 						{
-							IRCServer.close();
-							IRCServer = null;
+							if (tls != null) tls.write(outgoing);
+							else channel.write(outgoing);
 						}
-					manager.hasDisconnectedFromServer();
+					boolean full = outgoing.hasRemaining() || (tls != null && tls.hasPendingOutput());
+					outgoing.compact();
+					if (full) return; // the socket buffer is full, wait for the next OP_WRITE
+					if (delay > 0 || toIRCServer.isEmpty() || (closeAfterFlush && !toIRCServer.hasUrgent())) break;
 				}
+			if (closeAfterFlush && !toIRCServer.hasUrgent())
+				{
+					cleanUp();
+					return;
+				}
+			watchWritable(false);
+			if (delay > 0)
+				{
+					// flood control: come back when the next line may be sent
+					if (pacingCancel == null) pacingCancel = loop.schedule(() -> {pacingCancel = null; if (writeRequested.compareAndSet(false, true)) watchWritable(true); }, delay);
+				}
+			// a line may have been queued after the queue was found empty
+			else if (!toIRCServer.isEmpty() && writeRequested.compareAndSet(false, true)) watchWritable(true);
+		}
+
+
+	/** Adds or removes OP_WRITE to the interest of the connection. Runs on the I/O thread. */
+	private void watchWritable(boolean on)
+		{
+			if (key == null || !key.isValid())
+				{
+					writeRequested.set(false);
+					return;
+				}
+			if (on) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			else
+				{
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					writeRequested.set(false);
+				}
+		}
+
+
+	/**
+	  * Displays text on the main IRC window.
+	  * Used when errors occur or connections are established or closed.
+	  * @param notice the text to be displayed
+	  */
+	private void display(String notice) {if (manager != null) manager.displayMessage(notice);	}
+
+
+	/**
+	  * Displays text, with given style, on the main IRC window.
+	  * Used when errors occur or connections are established or closed.
+	  * @param notice the text to be displayed
+	  */
+	private void display(String notice, javax.swing.text.Style s) {manager.displayMessage(notice, s); }
+
+
+	/** Closes the connection to the server and notifies the manager. */
+	private void cleanUp()
+		{
+			if (!closed.compareAndSet(false, true)) return;
+			SocketChannel channel = IRCServer;
+			IRCServer = null;
+			if (key != null) key.cancel();
+			key = null;
+			if (pacingCancel != null) pacingCancel.run();
+			pacingCancel = null;
+			if (pingCancel != null) pingCancel.run();
+			pingCancel = null;
+			pingSent.set(0);
+			lastLag = -1;
+			toIRCServer.clear();
+			framer.reset();
+			if (tls != null) tls.close();
+			tls = null;
+			try {if (channel != null) channel.close(); }
 			catch (IOException ioe) {display("\nError! Could not close connection to server."); }
+			manager.hasDisconnectedFromServer();
 		}
 }
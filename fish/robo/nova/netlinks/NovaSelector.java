@@ -0,0 +1,197 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+  * A single I/O thread that services the non-blocking server connections of all NovaLinker objects.
+  * Channels are registered with a handler that is called on this thread whenever the channel is ready.
+  * Other threads hand over work, like changing the interest of a channel, with execute().
+  * Work can also be scheduled to run on this thread after a delay, e.g. for pacing output or timeouts.
+  * Handlers must not block, or all connections stall.
+  * @author Kai Berk Oezer
+  */
+public class NovaSelector implements Runnable
+{
+	/** Called on the I/O thread when a registered channel is ready for one of its interest operations. */
+	public interface Handler
+		{
+			public void channelReady(SelectionKey key);
+		}
+
+	/** a task scheduled to run at a certain time */
+	private static final class TimedTask implements Comparable<TimedTask>
+		{
+			final long due; // System.nanoTime() at which the task runs
+			final long sequence; // keeps tasks with the same due time in order
+			final Runnable task;
+			volatile boolean cancelled = false;
+			TimedTask(long due, long sequence, Runnable task) {this.due = due; this.sequence = sequence; this.task = task; }
+			public int compareTo(TimedTask other)
+				{
+					if (due != other.due) return (due - other.due < 0) ? -1 : 1;
+					return Long.compare(sequence, other.sequence);
+				}
+		}
+
+	private static NovaSelector shared = null;
+
+	private final Selector selector;
+	private final Thread thread;
+	/** work handed over by other threads, run by the I/O thread before the next select */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** tasks that run after a delay, ordered by due time; guarded by itself */
+	private final PriorityQueue<TimedTask> timed = new PriorityQueue<TimedTask>();
+	private long timedSequence = 0;
+
+
+	private NovaSelector() throws IOException
+		{
+			selector = Selector.open();
+			thread = new Thread(this, "Nova I/O");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+
+	/**
+	  * @return the I/O loop shared by all connections of this process, started on first use
+	  * @throws IOException if the selector can not be opened
+	  */
+	public static synchronized NovaSelector getShared() throws IOException
+		{
+			if (shared == null) shared = new NovaSelector();
+			return shared;
+		}
+
+
+	/** @return true if the calling thread is the I/O thread */
+	public boolean inLoop() {return Thread.currentThread() == thread; }
+
+
+	/**
+	  * Runs a task on the I/O thread. Tasks run in the order they were given.
+	  * @param task the task, must not block
+	  */
+	public void execute(Runnable task)
+		{
+			tasks.add(task);
+			if (!inLoop()) selector.wakeup();
+		}
+
+
+	/**
+	  * Runs a task on the I/O thread after a delay.
+	  * @param task the task, must not block
+	  * @param delayMillis the delay in milliseconds
+	  * @return cancels the task if it has not run yet
+	  */
+	public Runnable schedule(Runnable task, long delayMillis)
+		{
+			final TimedTask t;
+			synchronized (timed)
+				{
+					t = new TimedTask(System.nanoTime() + Math.max(0, delayMillis) * 1000000L, timedSequence++, task);
+					timed.add(t);
+				}
+			if (!inLoop()) selector.wakeup();
+			return () -> t.cancelled = true;
+		}
+
+
+	/**
+	  * Registers a channel with the selector. Must be called on the I/O thread.
+	  * @param channel a channel in non-blocking mode
+	  * @param ops the initial interest operations
+	  * @param handler called when the channel is ready
+	  * @return the selection key of the channel
+	  */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException
+		{
+			return channel.register(selector, ops, handler);
+		}
+
+
+	/** The I/O loop. */
+	public void run()
+		{
+			while (true)
+				{
+					try
+						{
+							long timeout = runDueTasks();
+							if (!tasks.isEmpty()) selector.selectNow();
+							else if (timeout < 0) selector.select();
+							else selector.select(Math.max(1, timeout));
+						}
+					catch (IOException ioe)
+						{
+							System.out.println("NOVA: I/O selector failed: " + ioe.getMessage());
+							continue;
+						}
+					Runnable task;
+					while ((task = tasks.poll()) != null)
+						{
+							try {task.run(); }
+							catch (RuntimeException re) {re.printStackTrace(); }
+						}
+					Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+					while (ready.hasNext())
+						{
+							SelectionKey key = ready.next();
+							ready.remove();
+							if (!key.isValid()) continue;
+							try {((Handler) key.attachment()).channelReady(key); }
+							catch (CancelledKeyException cke) { /* closed by the handler */ }
+							catch (RuntimeException re) {re.printStackTrace(); }
+						}
+				}
+		}
+
+
+	/**
+	  * Runs the scheduled tasks that are due.
+	  * @return the milliseconds until the next scheduled task, or -1 if there is none
+	  */
+	private long runDueTasks()
+		{
+			while (true)
+				{
+					TimedTask next;
+					synchronized (timed)
+						{
+							next = timed.peek();
+							if (next == null) return -1;
+							long wait = next.due - System.nanoTime();
+							if (wait > 0) return (wait + 999999) / 1000000;
+							timed.poll();
+						}
+					if (next.cancelled) continue;
+					try {next.task.run(); }
+					catch (RuntimeException re) {re.printStackTrace(); }
+				}
+		}
+}
@@ -0,0 +1,326 @@
+/***************************************************************************
+*
+* This file is part of the Nova IRC project.
+* Copyright (C) 1998-2000, 2018 Kai Berk Oezer
+* https://github.com/robo-fish/NOVA-IRC
+*
+* Nova IRC is free software. You can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*
+****************************************************************************/
+package fish.robo.nova.netlinks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+  * TLS on top of a non-blocking SocketChannel, driven by an SSLEngine on the I/O thread.
+  * read() and write() work like those of the channel, but on the plain text; the handshake runs inside them.
+  * While the handshake is running, write() takes nothing, and records that the socket did not take
+  * are kept until the channel is writable again (see hasPendingOutput()).
+  * The SSLContexts are shared by all connections, so a reconnection resumes the TLS session of the last connection
+  * to the same server and port instead of making a full handshake.
+  * A server can be pinned to the SHA-256 hashes of its public keys, in the form "pin-sha256:<Base64>";
+  * a pinned server is trusted by its key alone, otherwise the certificate and the host name are checked as usual.
+  * A client certificate, e.g. for SASL EXTERNAL, is read from a PKCS #12 key store.
+  * @author Kai Berk Oezer
+  */
+public class TLSChannel
+{
+	/** the SSLContexts by pins and client certificate, "" for the default trust without a certificate */
+	private static final HashMap<String,SSLContext> contexts = new HashMap<String,SSLContext>();
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	/** the received TLS records, in write mode */
+	private ByteBuffer netIn;
+	/** the TLS records to be sent, in read mode */
+	private ByteBuffer netOut;
+	/** the decrypted bytes that the caller has not taken yet, in read mode */
+	private ByteBuffer appIn;
+
+
+	/**
+	  * Creates the SSLEngine for a server. Should not be called on the I/O thread, as the first call
+	  * for a set of pins loads the trusted certificates.
+	  * @param host the address of the server, also used for SNI and the host name check
+	  * @param port the port number of the server
+	  * @param pins the pinned keys, e.g. "pin-sha256:...", empty to check the certificate instead
+	  * @param certificate the file of the key store with the client certificate, null for none
+	  * @param password the password of the key store
+	  */
+	public static SSLEngine createEngine(String host, int port, List<String> pins, String certificate, String password) throws GeneralSecurityException
+		{
+			SSLContext context;
+			synchronized (contexts)
+				{
+					String key = String.join(" ", pins) + ((certificate != null) ? " cert=" + certificate : "");
+					context = contexts.get(key);
+					if (context == null)
+						{
+							context = SSLContext.getInstance("TLS");
+							context.init((certificate != null) ? keyManagers(certificate, password) : null,
+							             pins.isEmpty() ? null : new TrustManager[] {new PinningTrustManager(pins)}, null);
+							contexts.put(key, context);
+						}
+				}
+			SSLEngine engine = context.createSSLEngine(host, port);
+			engine.setUseClientMode(true);
+			if (pins.isEmpty())
+				{
+					SSLParameters parameters = engine.getSSLParameters();
+					parameters.setEndpointIdentificationAlgorithm("HTTPS");
+					engine.setSSLParameters(parameters);
+				}
+			return engine;
+		}
+
+
+	/** @return the key managers that offer the client certificate of a key store */
+	private static KeyManager[] keyManagers(String file, String password) throws GeneralSecurityException
+		{
+			KeyStore store;
+			try {store = KeyStore.getInstance(new File(file), password.toCharArray()); }
+			catch (IOException | IllegalArgumentException e) {throw new KeyStoreException("cannot read the client certificate " + file + ": " + e.getMessage()); }
+			KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			factory.init(store, password.toCharArray());
+			return factory.getKeyManagers();
+		}
+
+
+	/** @return the pin of a certificate, e.g. "pin-sha256:..." */
+	public static String pinOf(java.security.cert.Certificate certificate) throws GeneralSecurityException
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(certificate.getPublicKey().getEncoded());
+			return "pin-sha256:" + Base64.getEncoder().encodeToString(hash);
+		}
+
+
+	/**
+	  * @param channel a connected, non-blocking channel
+	  * @param engine an engine made by createEngine()
+	  */
+	public TLSChannel(SocketChannel channel, SSLEngine engine)
+		{
+			this.channel = channel;
+			this.engine = engine;
+			SSLSession session = engine.getSession();
+			netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut.flip();
+			appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+			appIn.flip();
+		}
+
+
+	/** Starts the handshake and sends the first message. */
+	public void beginHandshake() throws IOException
+		{
+			engine.beginHandshake();
+			handshake();
+		}
+
+
+	/** @return true until the handshake is complete */
+	public boolean isHandshaking()
+		{
+			SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+			return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && status != SSLEngineResult.HandshakeStatus.FINISHED;
+		}
+
+
+	/** @return true if there are TLS records that the socket did not take; the caller should wait until the channel is writable */
+	public boolean hasPendingOutput() {return netOut.hasRemaining(); }
+
+
+	/** @return the TLS session, e.g. for the protocol and cipher suite */
+	public SSLSession getSession() {return engine.getSession(); }
+
+
+	/**
+	  * Reads and decrypts what is available.
+	  * @param dst receives the plain text
+	  * @return the number of bytes put into dst, possibly 0, or -1 if the server closed the connection
+	  */
+	public int read(ByteBuffer dst) throws IOException
+		{
+			int n = transfer(appIn, dst);
+			boolean eof = false;
+			while (dst.hasRemaining())
+				{
+					int received = eof ? 0 : channel.read(netIn);
+					if (received < 0) eof = true;
+					netIn.flip();
+					appIn.compact();
+					SSLEngineResult result;
+					try {result = engine.unwrap(netIn, appIn); }
+					finally
+						{
+							appIn.flip();
+							netIn.compact();
+						}
+					handshake();
+					n += transfer(appIn, dst);
+					switch (result.getStatus())
+						{
+							case CLOSED: return (n > 0) ? n : -1;
+							case BUFFER_OVERFLOW: appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true); break;
+							case BUFFER_UNDERFLOW:
+								if (netIn.remaining() == 0) netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+								if (eof) return (n > 0) ? n : -1;
+								if (received == 0) return n;
+								break;
+							default:
+								if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && received <= 0) return (eof && n == 0) ? -1 : n;
+						}
+				}
+			return n;
+		}
+
+
+	/**
+	  * Encrypts and sends as much as the socket takes. Takes nothing while the handshake is running.
+	  * @param src the plain text
+	  * @return the number of bytes taken from src
+	  */
+	public int write(ByteBuffer src) throws IOException
+		{
+			if (!flush()) return 0;
+			handshake();
+			if (netOut.hasRemaining() || isHandshaking()) return 0;
+			int taken = 0;
+			while (src.hasRemaining())
+				{
+					netOut.compact();
+					SSLEngineResult result;
+					try {result = engine.wrap(src, netOut); }
+					finally {netOut.flip(); }
+					taken += result.bytesConsumed();
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("The TLS connection is closed.");
+					if (!flush()) break;
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && result.bytesConsumed() == 0)
+						netOut = grow(netOut, engine.getSession().getPacketBufferSize(), true);
+				}
+			return taken;
+		}
+
+
+	/**
+	  * Sends the records that the socket did not take before.
+	  * @return true if nothing is pending anymore
+	  */
+	public boolean flush() throws IOException
+		{
+			while (netOut.hasRemaining()) if (channel.write(netOut) == 0) return false;
+			return true;
+		}
+
+
+	/** Sends close_notify, as far as the socket takes it without waiting. The channel is not closed. */
+	public void close()
+		{
+			try
+				{
+					engine.closeOutbound();
+					handshake();
+				}
+			catch (IOException ignore) {}
+		}
+
+
+	/** Runs the delegated tasks and sends the handshake messages until the engine waits for the server. */
+	private void handshake() throws IOException
+		{
+			while (true)
+				{
+					switch (engine.getHandshakeStatus())
+						{
+							case NEED_TASK:
+								for (Runnable task; (task = engine.getDelegatedTask()) != null; ) task.run();
+								break;
+							case NEED_WRAP:
+								{
+									netOut.compact();
+									SSLEngineResult result;
+									try {result = engine.wrap(EMPTY, netOut); }
+									finally {netOut.flip(); }
+									if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flush()) return;
+									if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+										{
+											flush();
+											return;
+										}
+									break;
+								}
+							default:
+								flush();
+								return;
+						}
+				}
+		}
+
+
+	/** Moves as many bytes as fit from a buffer in read mode to dst. */
+	private static int transfer(ByteBuffer from, ByteBuffer dst)
+		{
+			int n = Math.min(from.remaining(), dst.remaining());
+			if (n == 0) return 0;
+			ByteBuffer slice = from.duplicate();
+			slice.limit(slice.position() + n);
+			dst.put(slice);
+			from.position(from.position() + n);
+			return n;
+		}
+
+
+	/** @return a larger buffer with the content of the given one, in the same mode */
+	private static ByteBuffer grow(ByteBuffer buffer, int size, boolean readMode)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+			if (readMode) {larger.put(buffer); larger.flip(); }
+			else {buffer.flip(); larger.put(buffer); }
+			return larger;
+		}
+
+
+	/** Trusts a server whose certificate has one of the pinned public keys. */
+	private static final class PinningTrustManager implements X509TrustManager
+		{
+			private final List<String> pins;
+
+			PinningTrustManager(List<String> pins) {this.pins = new ArrayList<String>(pins); }
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException
+				{
+					if (chain == null || chain.length == 0) throw new CertificateException("The server sent no certificate.");
+					String pin;
+					try {pin = pinOf(chain[0]); }
+					catch (GeneralSecurityException gse) {throw new CertificateException(gse); }
+					if (!pins.contains(pin)) throw new CertificateException("The key of the server (" + pin + ") is not pinned.");
+				}
+
+			public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException
+				{
+					throw new CertificateException("Nova does not accept clients.");
+				}
+
+			public X509Certificate[] getAcceptedIssuers() {return new X509Certificate[0]; }
+		}
+}